@@ -2,35 +2,33 @@ package io.bdrc.iiif.archives;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 
-import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
-import org.ehcache.spi.loaderwriter.CacheWritingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.bdrc.auth.Access;
 import io.bdrc.iiif.core.Application;
-import io.bdrc.iiif.core.EHServerCache;
 import io.bdrc.iiif.exceptions.IIIFException;
 import io.bdrc.iiif.resolver.IdentifierInfo;
 import io.bdrc.iiif.resolver.ImageInfo;
@@ -44,293 +42,286 @@ public class ArchiveBuilder {
 
     public final static Logger log = LoggerFactory.getLogger(ArchiveBuilder.class.getName());
 
-    public static ExecutorService service = Executors.newFixedThreadPool(50);
-    
-    public static Map<String, Double> pdfjobs = new ConcurrentHashMap<>();
-    public static Map<String, Double> zipjobs = new ConcurrentHashMap<>();
-
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    public static void buildPdf(Access acc, IdentifierInfo inf, Identifier idf, String output, String origin)
-            throws Exception {
+    /**
+     * Builds the pdf and puts it in the archive store. The document uses a scratch
+     * file instead of the heap for its streams and the images are fetched
+     * through a bounded window, so the memory used doesn't depend on the number
+     * of pages.
+     */
+    public static void buildPdf(ArchiveJob job) throws IIIFException {
         long deb = System.currentTimeMillis();
+        final String output = job.output;
+        final IdentifierInfo inf = job.getIdentifierInfo();
+        File tmp = null;
+        PageFetchWindow window = null;
         try {
-            pdfjobs.put(output, 0.);
             Application.logPerf("Starting building pdf {}", inf.volumeId);
-            Application.logPerf("S3 client obtained in building pdf {} after {} ", inf.volumeId,
-                    System.currentTimeMillis() - deb);
-            TreeMap<Integer, Future<?>> t_map = new TreeMap<>();
-            HashMap<String, ImageInfo> imgDim = new HashMap<>();
-            List<ImageInfo> imgInfo = getImageInfos(idf, inf, acc);
-            final int totalImages = imgInfo.size();
-            int i = 1;
-            for (ImageInfo imgInf : imgInfo) {
-                if (imgInf.size == null || imgInf.size <= Integer.parseInt(Application.getProperty("imgSizeLimit"))) {
-                    imgDim.put(imgInf.filename, imgInf);
-                    ArchiveImageProducer tmp = null;
-                    tmp = new ArchiveImageProducer(inf, imgInf.filename, origin);
-                    log.info("added Future for image {} of size {}", imgInf.filename, imgInf.size);
-                    Future<?> fut = service.submit((Callable) tmp);
-                    t_map.put(i, fut);
-                    i += 1;
-                }
+            // the metadata is fetched while the pages are
+            final CompletableFuture<ArchiveInfo> archiveInfo = ArchiveInfo.getAsync(inf);
+            // copy, as the list can be the cached one
+            final List<ImageInfo> imgInfo = new ArrayList<>(getImageInfos(job, inf));
+            final int sizeLimit = Integer.parseInt(Application.getProperty("imgSizeLimit"));
+            imgInfo.removeIf(imgInf -> imgInf.size != null && imgInf.size > sizeLimit);
+            if (sliceFromVolume(job, inf, imgInfo, archiveInfo)) {
+                Application.logPerf("pdf {} sliced from volume pdf after {}", output, System.currentTimeMillis() - deb);
+                return;
             }
-            log.info("Setting output {} to false", output);
-            PDDocument doc = new PDDocument();
-            doc.setDocumentInformation(ArchiveInfo.getInstance(inf).getDocInformation());
-            Application.logPerf("building pdf writer and document opened {} after {}", inf.volumeId,
-                    System.currentTimeMillis() - deb);
-            for (int k = 1; k <= t_map.keySet().size(); k++) {
-                Future<?> tmp = t_map.get(k);
-                Object[] obj = (Object[]) tmp.get();
-                byte[] bmg = (byte[]) obj[0];
-                String imgKey = (String) obj[1];
-                if (bmg == null) {
-                    // Trying to insert image indicating that original image is
-                    // missing
-                    try {
-                        bmg = toByteArray(
-                                ArchiveImageProducer.getBufferedMissingImage("Page " + k + " couldn't be found"));
-                    } catch (Exception e) {
-                        // We don't interrupt the pdf generation process
-                        log.error("Could not get Buffered Missing image from producer for page {} of volume {}", k,
-                                inf.volumeId);
+            final int totalImages = imgInfo.size();
+            final List<String> pages = new ArrayList<>();
+            tmp = ArchiveFileStore.newTempFile(output, PDF_TYPE);
+            window = new PageFetchWindow(inf, imgInfo, job.origin, PageFetchWindow.getWindowSize(), job.maxWidth);
+            PDDocument doc = new PDDocument(MemoryUsageSetting.setupTempFileOnly());
+            try {
+                Application.logPerf("building pdf writer and document opened {} after {}", inf.volumeId,
+                        System.currentTimeMillis() - deb);
+                for (int k = 1; k <= totalImages; k++) {
+                    final String indexName = addPage(doc, imgInfo.get(k - 1), window.next(), k, inf.volumeId);
+                    if (indexName != null) {
+                        pages.add(indexName);
                     }
+                    job.checkpoint(k, totalImages);
                 }
-                PDPage page = new PDPage(
-                        new PDRectangle(imgDim.get(imgKey).getWidth(), imgDim.get(imgKey).getHeight()));
-                doc.addPage(page);
-                PDImageXObject pdImage = PDImageXObject.createFromByteArray(doc, bmg, "");
-                PDPageContentStream contents = new PDPageContentStream(doc, page);
-                contents.drawImage(pdImage, 0, 0);
-                log.debug("page was drawn for img {} ", bmg);
-                contents.close();
-                if (k % 5 == 0) {
-                    // every 5 images, update the percentage
-                    final double rate = k / ((double) totalImages);
-                    pdfjobs.put(output, rate);
-                }
+                doc.setDocumentInformation(ArchiveInfo.get(archiveInfo, inf).getDocInformation());
+                doc.save(tmp);
+            } finally {
+                doc.close();
             }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            COSWriter cw = new COSWriter(baos);
-            cw.write(doc);
-            cw.close();
-            log.debug("Closing doc after writing {} ", doc);
-            doc.close();
+            ArchiveFileStore.commit(tmp, output, PDF_TYPE);
+            PdfPageIndex.write(output, pages);
             Application.logPerf("pdf document finished and closed for {} after {}", inf.volumeId,
                     System.currentTimeMillis() - deb);
-            EHServerCache.IIIF_PDF.put(output, baos.toByteArray());
-        } catch (CacheWritingException | ExecutionException | InterruptedException e) {
-            log.error("Error while building pdf for identifier info " + inf.toString(), "");
+        } catch (Exception e) {
+            log.error("Error while building pdf for identifier info {}", inf.toString());
+            if (window != null) {
+                window.cancel();
+            }
             throw new IIIFException(500, IIIFException.GENERIC_APP_ERROR_CODE, e);
         } finally {
-            pdfjobs.remove(output);
+            if (tmp != null) {
+                tmp.delete();
+            }
         }
+    }
 
+    /**
+     * Adds the page of the image to the document, or a page saying it's missing
+     * if bmg is null. Returns the name of the page in the page index, or null if
+     * no page could be added.
+     */
+    static String addPage(PDDocument doc, ImageInfo imgInf, byte[] bmg, int k, String volumeId) throws IOException {
+        final boolean missing = bmg == null;
+        if (missing) {
+            // Trying to insert image indicating that original image is
+            // missing
+            try {
+                bmg = toByteArray(ArchiveImageProducer.getBufferedMissingImage("Page " + k + " couldn't be found"));
+            } catch (Exception e) {
+                // We don't interrupt the pdf generation process
+                log.error("Could not get Buffered Missing image from producer for page {} of volume {}", k, volumeId);
+                return null;
+            }
+        }
+        PDImageXObject pdImage = PdfImageEmbedder.createImage(doc, bmg);
+        // the page has the size of the original image, whatever
+        // image is actually embedded
+        int width = imgInf.getWidth();
+        int height = imgInf.getHeight();
+        if (missing || width <= 0 || height <= 0) {
+            width = pdImage.getWidth();
+            height = pdImage.getHeight();
+        }
+        PDPage page = new PDPage(new PDRectangle(width, height));
+        doc.addPage(page);
+        PDPageContentStream contents = new PDPageContentStream(doc, page);
+        contents.drawImage(pdImage, 0, 0, width, height);
+        contents.close();
+        return missing ? "" : imgInf.filename;
     }
 
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    public static void buildSyncPdf(Access acc, IdentifierInfo inf, Identifier idf, String output, String origin)
-            throws IIIFException {
-        long deb = System.currentTimeMillis();
-        try {
-            pdfjobs.put(output, 0.);
-            log.error("generate PDF for {}", output);
-            Application.logPerf("Starting building pdf {}", inf.volumeId);
-            List<ImageInfo> imgInfo = getImageInfos(idf, inf, acc);
-            final int totalImages = imgInfo.size();
-            HashMap<String, ImageInfo> imgDim = new HashMap<>();
-            log.info("Setting output {} ", output);
-            PDDocument doc = new PDDocument();
-            doc.setDocumentInformation(ArchiveInfo.getInstance(inf).getDocInformation());
-            Application.logPerf("building pdf writer and document opened {} after {}", inf.volumeId,
-                    System.currentTimeMillis() - deb);
-            int k = 1;
+    /**
+     * Builds the pdf by copying the pages of a full volume pdf of the store,
+     * without fetching or decoding the images again. Returns false if there is
+     * no such pdf containing all the pages.
+     */
+    static boolean sliceFromVolume(ArchiveJob job, IdentifierInfo inf, List<ImageInfo> imgInfo,
+            CompletableFuture<ArchiveInfo> archiveInfo) throws IOException, IIIFException {
+        final Integer total = inf.getTotalPages();
+        if (total == null) {
+            return false;
+        }
+        final String suffix = ArchiveJob.getVariantSuffix(job.maxWidth);
+        final String[] candidates = { job.imageGroupId + ":1-" + total + suffix,
+                job.imageGroupId + "FAIR_USE:1-" + total + suffix };
+        for (String candidate : candidates) {
+            if (candidate.equals(job.output)) {
+                continue;
+            }
+            final Map<String, Integer> index = PdfPageIndex.read(candidate);
+            if (index == null || !ArchiveFileStore.contains(candidate, PDF_TYPE)) {
+                continue;
+            }
+            boolean complete = true;
             for (ImageInfo imgInf : imgInfo) {
-                if (imgInf.size == null || imgInf.size <= Integer.parseInt(Application.getProperty("imgSizeLimit"))) {
-                    log.debug("adding {}", imgInf.filename);
-                    imgDim.put(imgInf.filename, imgInf);
-                    // ArchiveImageProducer tmp = null;
-                    Object[] obj = ArchiveImageProducer.getImageAsBytes(inf, imgInf.filename, origin);
-                    byte[] bmg = (byte[]) obj[0];
-                    String imgKey = (String) obj[1];
-                    if (bmg == null) {
-                        // Trying to insert image indicating that original image
-                        // is
-                        // missing
-                        try {
-                            bmg = toByteArray(
-                                    ArchiveImageProducer.getBufferedMissingImage("Page {}" + k + " couldn't be found"));
-                        } catch (Exception e) {
-                            // We don't interrupt the pdf generation process
-                            log.error("Could not get Buffered Missing image from producer for page {} of volume {}", k,
-                                    inf.volumeId);
-                        }
-                    }
-                    PDPage page = new PDPage(
-                            new PDRectangle(imgDim.get(imgKey).getWidth(), imgDim.get(imgKey).getHeight()));
-                    doc.addPage(page);
-                    PDImageXObject pdImage = PDImageXObject.createFromByteArray(doc, bmg, "");
-                    PDPageContentStream contents = new PDPageContentStream(doc, page);
-                    contents.drawImage(pdImage, 0, 0);
-                    //log.debug("page was drawn for img {}", imgInf.filename);
-                    contents.close();
+                if (!index.containsKey(imgInf.filename)) {
+                    complete = false;
+                    break;
                 }
-                if ((k % 5) == 0) {
-                    // every 5 images, update the percentage
-                    final double rate = k / ((double) totalImages);
-                    pdfjobs.put(output, rate);
+            }
+            final File src = ArchiveFileStore.get(candidate, PDF_TYPE);
+            if (!complete || src == null) {
+                continue;
+            }
+            final File tmp = ArchiveFileStore.newTempFile(job.output, PDF_TYPE);
+            try {
+                final List<String> pages = new ArrayList<>();
+                try (PDDocument volume = PDDocument.load(src, MemoryUsageSetting.setupTempFileOnly());
+                        PDDocument doc = new PDDocument(MemoryUsageSetting.setupTempFileOnly())) {
+                    doc.setDocumentInformation(ArchiveInfo.get(archiveInfo, inf).getDocInformation());
+                    for (int k = 1; k <= imgInfo.size(); k++) {
+                        final String filename = imgInfo.get(k - 1).filename;
+                        // the page shares its resources with the volume, the
+                        // image streams are copied as they are on save
+                        doc.importPage(volume.getPage(index.get(filename)));
+                        pages.add(filename);
+                        job.checkpoint(k, imgInfo.size());
+                    }
+                    doc.save(tmp);
                 }
-                k++;
+                ArchiveFileStore.commit(tmp, job.output, PDF_TYPE);
+                PdfPageIndex.write(job.output, pages);
+            } finally {
+                tmp.delete();
             }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            COSWriter cw = new COSWriter(baos);
-            cw.write(doc);
-            cw.close();
-            log.error("Closing doc after writing {} ", doc);
-            doc.close();
-            Application.logPerf("pdf document finished and closed for {} after {}", inf.volumeId,
-                    System.currentTimeMillis() - deb);
-            EHServerCache.IIIF_PDF.put(output, baos.toByteArray());
-        } catch (Exception e) {
-            log.error("Error while building pdf for identifier info {}", inf.toString());
+            log.info("pdf {} sliced from {}", job.output, candidate);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Builds the zip and puts it in the archive store
+     */
+    public static void buildZip(ArchiveJob job) throws IIIFException {
+        File tmp = null;
+        try {
+            tmp = ArchiveFileStore.newTempFile(job.output, ZIP_TYPE);
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                writeZip(job, os);
+            }
+            ArchiveFileStore.commit(tmp, job.output, ZIP_TYPE);
+            log.info("Put zip file in archive store with key {}", job.output);
+        } catch (IOException e) {
+            log.error("Error while building zip archives ", e.getMessage());
             throw new IIIFException(500, IIIFException.GENERIC_APP_ERROR_CODE, e);
         } finally {
-            pdfjobs.remove(output);
+            if (tmp != null) {
+                tmp.delete();
+            }
         }
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
-    public static void buildZip(Access acc, IdentifierInfo inf, Identifier idf, String output, String origin)
-            throws IIIFException {
+    /**
+     * Writes the zip to the output stream as the images are fetched. The images
+     * are already compressed, so the entries are stored and not deflated.
+     */
+    public static void writeZip(ArchiveJob job, OutputStream os) throws IIIFException {
+        long deb = System.currentTimeMillis();
+        final IdentifierInfo inf = job.getIdentifierInfo();
+        PageFetchWindow window = null;
         try {
-            zipjobs.put(output, 0.);
-            long deb = System.currentTimeMillis();
             Application.logPerf("Starting building zip {}", inf.volumeId);
-            Application.logPerf("S3 client obtained in building pdf {} after {} ", inf.volumeId,
-                    System.currentTimeMillis() - deb);
-            TreeMap<Integer, Future<?>> t_map = new TreeMap<>();
-            TreeMap<Integer, String> images = new TreeMap<>();
-            List<ImageInfo> imgInfo = getImageInfos(idf, inf, acc);
+            final List<ImageInfo> imgInfo = new ArrayList<>(getImageInfos(job, inf));
+            final int sizeLimit = Integer.parseInt(Application.getProperty("imgSizeLimit"));
+            imgInfo.removeIf(imgInf -> imgInf.size != null && imgInf.size > sizeLimit);
             final int totalImages = imgInfo.size();
-            int i = 1;
-            for (ImageInfo imf : imgInfo) {
-                ArchiveImageProducer tmp = new ArchiveImageProducer(inf, imf.filename, origin);
-                Future<?> fut = service.submit((Callable) tmp);
-                t_map.put(i, fut);
-                images.put(i, imf.filename);
-                i += 1;
-            }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ZipOutputStream zipOut = new ZipOutputStream(baos);
+            window = new PageFetchWindow(inf, imgInfo, job.origin, PageFetchWindow.getWindowSize(), job.maxWidth);
+            ZipOutputStream zipOut = new ZipOutputStream(os);
             Application.logPerf("building zip stream opened {} after {}", inf.volumeId,
                     System.currentTimeMillis() - deb);
-
-            for (int k = 1; k <= t_map.keySet().size(); k++) {
-                Future<?> tmp = t_map.get(k);
-                byte[] img = null;
-                Object[] obj = (Object[]) tmp.get();
-                img = (byte[]) obj[0];
+            final CRC32 crc = new CRC32();
+            for (int k = 1; k <= totalImages; k++) {
+                byte[] img = window.next();
                 if (img == null) {
                     // Trying to insert image indicating that original image is
                     // missing
                     try {
-                        BufferedImage bImg = ArchiveImageProducer
-                                .getBufferedMissingImage("Page " + k + " couldn't be found");
-                        ByteArrayOutputStream out = new ByteArrayOutputStream();
-                        ImageIO.write(bImg, "png", out);
-                        img = out.toByteArray();
+                        img = toByteArray(
+                                ArchiveImageProducer.getBufferedMissingImage("Page " + k + " couldn't be found"));
                     } catch (IOException e) {
-                        // We don't interrupt the pdf generation process
+                        // We don't interrupt the zip generation process
                         log.error("Could not get Buffered Missing image from producer for page {} of volume {}", k,
                                 inf.volumeId);
+                        continue;
                     }
                 }
-                ZipEntry zipEntry = new ZipEntry(images.get(k));
-                zipOut.putNextEntry(zipEntry);
-                zipOut.write(img);
-                zipOut.closeEntry();
-                if (k % 5 == 0) {
-                    // every 5 images, update the percentage
-                    final double rate = k / ((double) totalImages);
-                    pdfjobs.put(output, rate);
-                }
+                writeStoredEntry(zipOut, getEntryName(imgInfo.get(k - 1), job.maxWidth), img, crc);
+                job.checkpoint(k, totalImages);
             }
-            zipOut.close();
+            zipOut.finish();
+            os.flush();
             Application.logPerf("zip document finished and closed for {} after {}", inf.volumeId,
                     System.currentTimeMillis() - deb);
-            EHServerCache.IIIF_ZIP.put(output, baos.toByteArray());
-            log.info("Put zip file in cache with key {}", output.substring(3));
-            log.info("Put true in zip jobs cache for {}", output);
-        } catch (IOException | ExecutionException | InterruptedException e) {
+        } catch (IIIFException e) {
+            if (window != null) {
+                window.cancel();
+            }
+            throw e;
+        } catch (IOException | InterruptedException e) {
             log.error("Error while building zip archives ", e.getMessage());
+            if (window != null) {
+                window.cancel();
+            }
             throw new IIIFException(500, IIIFException.GENERIC_APP_ERROR_CODE, e);
-        } finally {
-            zipjobs.remove(output);
         }
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
-    public static void buildSyncZip(Access acc, IdentifierInfo inf, Identifier idf, String output, String origin)
-            throws IIIFException {
-        try {
-            zipjobs.put(output, 0.);
-            long deb = System.currentTimeMillis();
-            Application.logPerf("Starting building zip {}", inf.volumeId);
-            Application.logPerf("S3 client obtained in building pdf {} after {} ", inf.volumeId,
-                    System.currentTimeMillis() - deb);
-            // TreeMap<Integer, Future<?>> t_map = new TreeMap<>();
-            TreeMap<Integer, String> images = new TreeMap<>();
-            List<ImageInfo> imgInfo = getImageInfos(idf, inf, acc);
-            int i = 1;
-            for (ImageInfo imf : imgInfo) {
-                ArchiveImageProducer tmp = new ArchiveImageProducer(inf, imf.filename, origin);
+    static String getEntryName(ImageInfo imgInf, int maxWidth) {
+        if (PageFetchWindow.isReduced(imgInf, maxWidth)) {
+            return imgInf.filename.substring(0, imgInf.filename.lastIndexOf('.') + 1) + "jpg";
+        }
+        return imgInf.filename;
+    }
 
+    static void writeStoredEntry(ZipOutputStream zipOut, String name, byte[] bytes, CRC32 crc) throws IOException {
+        crc.reset();
+        crc.update(bytes);
+        ZipEntry zipEntry = new ZipEntry(name);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(bytes.length);
+        zipEntry.setCompressedSize(bytes.length);
+        zipEntry.setCrc(crc.getValue());
+        zipOut.putNextEntry(zipEntry);
+        zipOut.write(bytes);
+        zipOut.closeEntry();
+    }
+
+    // the file is read twice, for its crc and its content
+    static void writeStoredEntry(ZipOutputStream zipOut, String name, File f) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buf = new byte[65536];
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                crc.update(buf, 0, n);
             }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ZipOutputStream zipOut = new ZipOutputStream(baos);
-            Application.logPerf("building zip stream opened {} after {}", inf.volumeId,
-                    System.currentTimeMillis() - deb);
-            int k = 1;
-            for (ImageInfo imf : imgInfo) {
-                if (imf.size == null || (imf.size != null
-                        && imf.size <= Integer.parseInt(Application.getProperty("imgSizeLimit")))) {
-                    Object[] obj = new ArchiveImageProducer(inf, imf.filename, origin).getImageAsBytes();
-                    byte[] bmg = (byte[]) obj[0];
-                    if (bmg == null) {
-                        // Trying to insert image indicating that original image
-                        // is
-                        // missing
-                        try {
-                            bmg = toByteArray(
-                                    ArchiveImageProducer.getBufferedMissingImage("Page " + k + " couldn't be found"));
-                        } catch (Exception e) {
-                            // We don't interrupt the pdf generation process
-                            log.error("Could not get Buffered Missing image from producer for page {} of volume {}", k,
-                                    inf.volumeId);
-                        }
-                    }
-                    ZipEntry zipEntry = new ZipEntry(imf.filename);
-                    zipOut.putNextEntry(zipEntry);
-                    zipOut.write(bmg);
-                    zipOut.closeEntry();
-                }
-                k++;
+        }
+        ZipEntry zipEntry = new ZipEntry(name);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(f.length());
+        zipEntry.setCompressedSize(f.length());
+        zipEntry.setCrc(crc.getValue());
+        zipOut.putNextEntry(zipEntry);
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                zipOut.write(buf, 0, n);
             }
-            zipOut.close();
-            Application.logPerf("zip document finished and closed for {} after {}", inf.volumeId,
-                    System.currentTimeMillis() - deb);
-            EHServerCache.IIIF_ZIP.put(output, baos.toByteArray());
-            log.info("Put zip file in cache with key {}", output.substring(3));
-            log.info("Put true in zip jobs cache for {}", output);
-        } catch (IOException e) {
-            log.error("Error while building zip archives ", e.getMessage());
-            throw new IIIFException(500, IIIFException.GENERIC_APP_ERROR_CODE, e);
-        } finally {
-            zipjobs.remove(output);
         }
+        zipOut.closeEntry();
     }
 
-    private static List<ImageInfo> getImageInfos(Identifier idf, IdentifierInfo inf, Access acc) throws IIIFException {
+    static List<ImageInfo> getImageInfos(ArchiveJob job, IdentifierInfo inf) throws IIIFException {
+        final Identifier idf = job.getIdentifier();
         Integer startPage = null;
         if (idf.getBPageNum() != null) {
             startPage = idf.getBPageNum();
@@ -343,7 +334,7 @@ public class ArchiveBuilder {
         } else {
             endPage = inf.getTotalPages();
         }
-        return inf.ensureImageListInfo(acc, startPage.intValue(), endPage.intValue());
+        return inf.ensureImageListInfo(job.fullAccess, startPage.intValue(), endPage.intValue());
     }
 
     public static byte[] toByteArray(BufferedImage img) throws IOException {
@@ -0,0 +1,167 @@
+package io.bdrc.iiif.archives;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.bdrc.iiif.core.Application;
+
+/**
+ * Disk store for the generated archives (pdf and zip files). Archives are
+ * written to a temporary file and only moved to their final place once
+ * complete, so a file present in the store is always a finished archive. The
+ * total size of the store is bounded (archiveStoreMaxMB property), the least
+ * recently used archives being deleted first.
+ */
+public class ArchiveFileStore {
+
+    public final static Logger log = LoggerFactory.getLogger(ArchiveFileStore.class);
+
+    // index files stored next to the archives and deleted with them
+    public static final String INDEX_TYPE = "index";
+
+    static File rootDir = null;
+    static File tmpDir = null;
+    static long maxBytes = 10000L * 1024 * 1024;
+
+    public static void init() {
+        String root = Application.getProperty("archiveStoreDir");
+        if (root == null) {
+            root = System.getProperty("user.dir") + File.separator + "IIIF_ARCHIVES";
+        }
+        final String max = Application.getProperty("archiveStoreMaxMB");
+        if (max != null) {
+            maxBytes = Long.parseLong(max) * 1024 * 1024;
+        }
+        rootDir = new File(root);
+        tmpDir = new File(rootDir, "tmp");
+        tmpDir.mkdirs();
+        // temporary files of builds interrupted by a restart are useless
+        final File[] leftovers = tmpDir.listFiles();
+        if (leftovers != null) {
+            for (File f : leftovers) {
+                f.delete();
+            }
+        }
+        log.info("archive store in {} with max size {} bytes", rootDir, maxBytes);
+    }
+
+    static String getFileName(final String key, final String type) {
+        return getFileName(key) + "." + type;
+    }
+
+    static String getFileName(final String key) {
+        return key.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    public static File getFile(final String key, final String type) {
+        return new File(rootDir, getFileName(key, type));
+    }
+
+    public static File getIndexFile(final String key, final String type) {
+        return new File(rootDir, getFileName(key, type) + "." + INDEX_TYPE);
+    }
+
+    public static boolean contains(final String key, final String type) {
+        return getFile(key, type).isFile();
+    }
+
+    // returns the archive if it's in the store, marking it as recently used
+    public static File get(final String key, final String type) {
+        final File f = getFile(key, type);
+        if (!f.isFile()) {
+            return null;
+        }
+        f.setLastModified(System.currentTimeMillis());
+        return f;
+    }
+
+    public static File newTempFile(final String key, final String type) throws IOException {
+        return File.createTempFile(getFileName(key, type) + "-", ".tmp", tmpDir);
+    }
+
+    // moves a finished temporary file to its final place in the store
+    public static File commit(final File tmp, final String key, final String type) throws IOException {
+        final File dst = getFile(key, type);
+        Files.move(tmp.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        evict();
+        return dst;
+    }
+
+    public static void commitIndex(final File tmp, final String key, final String type) throws IOException {
+        Files.move(tmp.toPath(), getIndexFile(key, type).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static void delete(final String key, final String type) {
+        getFile(key, type).delete();
+        getIndexFile(key, type).delete();
+    }
+
+    // deletes the archives (and their indexes) with a key starting with the prefix
+    public static int deleteByPrefix(final String keyPrefix) {
+        final String prefix = getFileName(keyPrefix);
+        final File[] files = rootDir.listFiles(f -> f.isFile() && f.getName().startsWith(prefix));
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File f : files) {
+            if (f.delete() && !isIndex(f)) {
+                log.info("deleted {} from archive store", f.getName());
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    static boolean isIndex(final File f) {
+        return f.getName().endsWith("." + INDEX_TYPE);
+    }
+
+    static synchronized void evict() {
+        final File[] files = rootDir.listFiles(f -> f.isFile() && !isIndex(f));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        final List<File> sorted = new ArrayList<>(Arrays.asList(files));
+        sorted.sort(Comparator.comparingLong(File::lastModified));
+        for (File f : sorted) {
+            if (total <= maxBytes) {
+                break;
+            }
+            final long length = f.length();
+            if (f.delete()) {
+                new File(f.getPath() + "." + INDEX_TYPE).delete();
+                log.info("evicted {} from archive store", f.getName());
+                total -= length;
+            }
+        }
+    }
+
+    public static void clear() {
+        final File[] files = rootDir.listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+}
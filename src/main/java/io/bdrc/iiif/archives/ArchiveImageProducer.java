@@ -8,13 +8,13 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.s3.AmazonS3;
 
-import io.bdrc.iiif.core.EHServerCache;
 import io.bdrc.iiif.exceptions.IIIFException;
 import io.bdrc.iiif.image.service.ImageProviderService;
 import io.bdrc.iiif.metrics.ImageMetrics;
@@ -59,24 +59,30 @@ public class ArchiveImageProducer implements Callable {
     static public Object[] getImageAsBytes(String id, String imageName, String origin, boolean isTiff) throws IIIFException {
         Object[] obj = new Object[2];
         obj[1] = imageName;
-        byte[] imgbytes = null;
+        // same cache entries as the image requests
+        final ImageProviderService service = ImageProviderService.InstanceArchive;
+        byte[] imgbytes = service.getCached(id);
+        if (imgbytes != null) {
+            log.debug("Got {} from cache ...", id);
+            ImageMetrics.imageCount(ImageMetrics.IMG_CALLS_COMMON, origin);
+            obj[0] = imgbytes;
+            return obj;
+        }
         try {
-            imgbytes = (byte[]) EHServerCache.get(IIIF_IMG, id);
-            if (imgbytes != null) {
-                log.debug("Got {} from cache ...", id);
-                ImageMetrics.imageCount(ImageMetrics.IMG_CALLS_COMMON, origin);
-                obj[0] = imgbytes;
-                return obj;
+            imgbytes = service.getAsync(id).get();
+        } catch (ExecutionException e) {
+            log.error("Could not get Image as bytes for id=" + id, e.getCause().getMessage());
+            if (e.getCause() instanceof IIIFException) {
+                throw (IIIFException) e.getCause();
             }
-            imgbytes = ImageProviderService.InstanceArchive.getFromApi(id);
-            obj[0] = imgbytes;
-            log.debug("Got {} from S3 ...added to cache", id);
-            EHServerCache.put(IIIF_IMG, id, imgbytes);
-            ImageMetrics.imageCount(ImageMetrics.IMG_CALLS_ARCHIVES, origin);
-        } catch (IIIFException e) {
-            log.error("Could not get Image as bytes for id=" + id, e.getMessage());
-            throw e;
+            throw new IIIFException(500, 5000, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IIIFException(500, 5000, e);
         }
+        obj[0] = imgbytes;
+        log.debug("Got {} from S3 ...added to cache", id);
+        ImageMetrics.imageCount(ImageMetrics.IMG_CALLS_ARCHIVES, origin);
         return obj;
     }
 
@@ -1,26 +1,45 @@
 package io.bdrc.iiif.archives;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import org.apache.http.client.ClientProtocolException;
 import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.NodeIterator;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.bdrc.iiif.core.Application;
 import io.bdrc.iiif.core.EHServerCache;
-import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.core.MetadataStore;
+import io.bdrc.iiif.image.service.LdsClient;
 import io.bdrc.iiif.resolver.IdentifierInfo;
 
+/**
+ * The metadata of the pdfs of a volume. It is fetched from the dataserver
+ * asynchronously, so that the builders can fetch the first pages meanwhile, and
+ * only the values put in the pdfs are cached, not the RDF models.
+ */
 public class ArchiveInfo {
 
+    public final static Logger log = LoggerFactory.getLogger(ArchiveInfo.class);
+
     public static Property PREF_LABEL = ResourceFactory.createProperty("http://www.w3.org/2004/02/skos/core#prefLabel");
     public static Property BIBLIO_NOTE = ResourceFactory.createProperty("http://purl.bdrc.io/ontology/core/workBiblioNote");
     public static Property CATALOG_INFO = ResourceFactory.createProperty("http://purl.bdrc.io/ontology/core/workCatalogInfo");
@@ -30,128 +49,159 @@ public class ArchiveInfo {
     public static Property PUBLISHER_LOC = ResourceFactory.createProperty("http://purl.bdrc.io/ontology/core/workPublisherLocation");
     public static Property PUBLISHER_NAME = ResourceFactory.createProperty("http://purl.bdrc.io/ontology/core/workPublisherName");
 
-    IdentifierInfo inf;
-    Model m;
-    static HashMap<String, Integer> langOrder;
-
-    private ArchiveInfo(IdentifierInfo inf) {
-        super();
-        this.inf = inf;
+    public static final int DEFAULT_TIMEOUT_MS = 10000;
 
-        langOrder = new HashMap<>();
+    static final HashMap<String, Integer> langOrder = new HashMap<>();
+    static {
         langOrder.put("bo-x-ewts", 0);
         langOrder.put("bo", 1);
         langOrder.put("en", 2);
-        this.m = ModelFactory.createDefaultModel();
-        // this is a trick we should not need (i.e the resource is prefixed by
-        // purl.bdrc.io)
-        String name = inf.igi.instanceId;
-        name = name.substring(name.lastIndexOf("/") + 1);
-        m.read(Application.getProperty("dataserver") + "resource/" + name + ".ttl", "TURTLE");
     }
 
-    public static ArchiveInfo getInstance(IdentifierInfo inf) throws IIIFException {
-        ArchiveInfo info = (ArchiveInfo) EHServerCache.ARCHIVE_INFO.get(inf.volumeId);
-        if (info == null) {
-            info = new ArchiveInfo(inf);
-            EHServerCache.ARCHIVE_INFO.put(inf.volumeId, info);
-        }
-        return info;
+    private static final ExecutorService service = Executors.newFixedThreadPool(4);
+    // volume id -> metadata being fetched
+    private static final Map<String, CompletableFuture<ArchiveInfo>> pending = new ConcurrentHashMap<>();
+    private static final MetadataStore<ArchiveInfo> store = MetadataStore.get("archiveInfo", ArchiveInfo::writeTo,
+            ArchiveInfo::readFrom);
+
+    String title = "";
+    String author = "";
+    String biblioNote = "";
+    String catalogInfo = "";
+    String numVolumes = "";
+    String publisherName = "";
+    String publisherLocation = "";
+    int volumeNumber;
+    // false if the agent couldn't be read
+    boolean complete = true;
+
+    private ArchiveInfo(int volumeNumber) {
+        this.volumeNumber = volumeNumber;
     }
 
-    private String getBiblioNote() {
-        String workId = inf.igi.instanceId;
-        String id = workId.substring(workId.lastIndexOf("/") + 1);
-        String ret = "";
-        NodeIterator ni = m.listObjectsOfProperty(ResourceFactory.createResource("http://purl.bdrc.io/resource/" + id), PREF_LABEL);
-        if (ni.hasNext()) {
-            RDFNode nd = ni.next();
-            ret = nd.asLiteral().getString();
+    static int getTimeout() {
+        final String timeout = Application.getProperty("archiveInfoTimeoutMs");
+        return timeout == null ? DEFAULT_TIMEOUT_MS : Integer.parseInt(timeout);
+    }
+
+    /**
+     * Starts fetching the metadata of the volume, or returns the cached one.
+     * Concurrent calls for the same volume share the same fetch.
+     */
+    public static CompletableFuture<ArchiveInfo> getAsync(final IdentifierInfo inf) {
+        final ArchiveInfo cached = EHServerCache.ARCHIVE_INFO.get(inf.volumeId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
         }
-        return ret;
+        final MetadataStore.Entry<ArchiveInfo> entry = store == null ? null : store.get(inf.volumeId);
+        if (entry != null) {
+            EHServerCache.ARCHIVE_INFO.put(inf.volumeId, entry.value);
+            if (!entry.isFresh()) {
+                store.refresh(inf.volumeId, () -> {
+                    final ArchiveInfo info = load(inf);
+                    return info.complete ? info : null;
+                }, info -> EHServerCache.ARCHIVE_INFO.put(inf.volumeId, info));
+            }
+            return CompletableFuture.completedFuture(entry.value);
+        }
+        final CompletableFuture<ArchiveInfo> fut = pending.computeIfAbsent(inf.volumeId,
+                id -> CompletableFuture.supplyAsync(() -> fetch(inf), service));
+        fut.whenComplete((info, e) -> pending.remove(inf.volumeId, fut));
+        return fut;
     }
 
-    private String getNumVolumes() {
-        String workId = inf.igi.instanceId;
-        String id = workId.substring(workId.lastIndexOf("/") + 1);
-        String ret = "";
-        NodeIterator ni = m.listObjectsOfProperty(ResourceFactory.createResource("http://purl.bdrc.io/resource/" + id), NUM_VOLUMES);
-        if (ni.hasNext()) {
-            RDFNode nd = ni.next();
-            ret = nd.asLiteral().getString();
+    /**
+     * Waits for the metadata at most the timeout. If it couldn't be fetched in
+     * time, returns the metadata that doesn't need the dataserver.
+     */
+    public static ArchiveInfo get(CompletableFuture<ArchiveInfo> fut, IdentifierInfo inf) {
+        try {
+            return fut.get(getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("timeout while fetching the metadata of {}", inf.volumeId);
+        } catch (ExecutionException e) {
+            log.error("could not fetch the metadata of {}", inf.volumeId, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return ret;
+        return new ArchiveInfo(inf.igi.volumeNumber);
     }
 
-    private String getCatalogInfo() {
-        String workId = inf.igi.instanceId;
-        String id = workId.substring(workId.lastIndexOf("/") + 1);
-        String ret = "";
-        NodeIterator ni = m.listObjectsOfProperty(ResourceFactory.createResource("http://purl.bdrc.io/resource/" + id), CATALOG_INFO);
-        if (ni.hasNext()) {
-            RDFNode nd = ni.next();
-            ret = nd.asLiteral().getString();
+    public static ArchiveInfo getInstance(IdentifierInfo inf) {
+        return get(getAsync(inf), inf);
+    }
+
+    // the metadata is cached only if it is complete
+    static ArchiveInfo fetch(IdentifierInfo inf) {
+        final ArchiveInfo info = load(inf);
+        if (info.complete) {
+            EHServerCache.ARCHIVE_INFO.put(inf.volumeId, info);
+            if (store != null) {
+                store.put(inf.volumeId, info);
+            }
         }
-        return ret;
+        return info;
     }
 
-    private String getPublisherName() {
-        String workId = inf.igi.instanceId;
-        String id = workId.substring(workId.lastIndexOf("/") + 1);
-        String ret = "";
-        NodeIterator ni = m.listObjectsOfProperty(ResourceFactory.createResource("http://purl.bdrc.io/resource/" + id), PUBLISHER_NAME);
-        if (ni.hasNext()) {
-            RDFNode nd = ni.next();
-            ret = nd.asLiteral().getString();
+    // the agent can only be read once the instance is
+    static ArchiveInfo load(IdentifierInfo inf) {
+        long deb = System.currentTimeMillis();
+        // this is a trick we should not need (i.e the resource is prefixed by
+        // purl.bdrc.io)
+        String name = inf.igi.instanceId;
+        name = name.substring(name.lastIndexOf("/") + 1);
+        final Resource instance = ResourceFactory.createResource("http://purl.bdrc.io/resource/" + name);
+        final Model m;
+        try {
+            m = LdsClient.readModel(Application.getProperty("dataserver") + "resource/" + name + ".ttl");
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        final ArchiveInfo info = new ArchiveInfo(inf.igi.volumeNumber);
+        // the bibliographical note has always been the label
+        info.biblioNote = getFirstValue(m, instance, PREF_LABEL);
+        info.catalogInfo = getFirstValue(m, instance, CATALOG_INFO);
+        info.numVolumes = getFirstValue(m, instance, NUM_VOLUMES);
+        info.publisherName = getFirstValue(m, instance, PUBLISHER_NAME);
+        info.publisherLocation = getFirstValue(m, instance, PUBLISHER_LOC);
+        info.title = getPrefLabel(m, instance);
+        final Resource agent = getAgent(m, instance);
+        if (agent != null) {
+            try {
+                info.author = getFirstValue(LdsClient.readModel(agent.getURI() + ".ttl"), agent, PREF_LABEL);
+            } catch (IOException e) {
+                log.warn("could not read the agent {} of {}", agent.getURI(), inf.volumeId, e);
+                info.complete = false;
+            }
         }
-        return ret;
+        Application.logPerf("metadata of {} fetched after {}", inf.volumeId, System.currentTimeMillis() - deb);
+        return info;
     }
 
-    private String getPublisherLocation() {
-        String workId = inf.igi.instanceId;
-        String id = workId.substring(workId.lastIndexOf("/") + 1);
-        String ret = "";
-        NodeIterator ni = m.listObjectsOfProperty(ResourceFactory.createResource("http://purl.bdrc.io/resource/" + id), PUBLISHER_LOC);
+    private static String getFirstValue(Model m, Resource r, Property p) {
+        NodeIterator ni = m.listObjectsOfProperty(r, p);
         if (ni.hasNext()) {
-            RDFNode nd = ni.next();
-            ret = nd.asLiteral().getString();
+            return ni.next().asLiteral().getString();
         }
-        return ret;
+        return "";
     }
 
-    private String getAuthor() {
-        String workId = inf.igi.instanceId;
-        String id = workId.substring(workId.lastIndexOf("/") + 1);
-        String ret = "";
-        Resource agent = null;
-        NodeIterator ni = m.listObjectsOfProperty(ResourceFactory.createResource("http://purl.bdrc.io/resource/" + id), CREATOR);
+    private static Resource getAgent(Model m, Resource instance) {
+        NodeIterator ni = m.listObjectsOfProperty(instance, CREATOR);
         if (ni.hasNext()) {
-            RDFNode nd = ni.next();
-            Resource creator = nd.asResource();
+            Resource creator = ni.next().asResource();
             NodeIterator n = m.listObjectsOfProperty(creator, AGENT);
             if (n.hasNext()) {
-                RDFNode nd1 = n.next();
-                agent = nd1.asResource();
+                return n.next().asResource();
             }
         }
-        if (agent != null) {
-            Model md = ModelFactory.createDefaultModel();
-            md.read(agent.getURI() + ".ttl", "TURTLE");
-            NodeIterator n2 = md.listObjectsOfProperty(agent, PREF_LABEL);
-            if (n2.hasNext()) {
-                RDFNode nd = n2.next();
-                ret = nd.asLiteral().getString();
-            }
-        }
-        return ret;
+        return null;
     }
 
-    private String getPrefLabel() throws ClientProtocolException, IOException {
-        String workId = inf.igi.instanceId;
-        String id = workId.substring(workId.lastIndexOf("/") + 1);
+    private static String getPrefLabel(Model m, Resource instance) {
         String ret = "";
         String tmp = "";
-        NodeIterator ni = m.listObjectsOfProperty(ResourceFactory.createResource("http://purl.bdrc.io/resource/" + id), PREF_LABEL);
+        NodeIterator ni = m.listObjectsOfProperty(instance, PREF_LABEL);
         int min = 999;
         while (ni.hasNext()) {
             RDFNode nd = ni.next();
@@ -170,21 +220,45 @@ public class ArchiveInfo {
         return tmp;
     }
 
-    public PDDocumentInformation getDocInformation() throws ClientProtocolException, IOException {
+    static void writeTo(final DataOutput out, final ArchiveInfo info) throws IOException {
+        out.writeUTF(info.title);
+        out.writeUTF(info.author);
+        out.writeUTF(info.biblioNote);
+        out.writeUTF(info.catalogInfo);
+        out.writeUTF(info.numVolumes);
+        out.writeUTF(info.publisherName);
+        out.writeUTF(info.publisherLocation);
+        out.writeInt(info.volumeNumber);
+    }
+
+    static ArchiveInfo readFrom(final DataInput in) throws IOException {
+        final ArchiveInfo info = new ArchiveInfo(0);
+        info.title = in.readUTF();
+        info.author = in.readUTF();
+        info.biblioNote = in.readUTF();
+        info.catalogInfo = in.readUTF();
+        info.numVolumes = in.readUTF();
+        info.publisherName = in.readUTF();
+        info.publisherLocation = in.readUTF();
+        info.volumeNumber = in.readInt();
+        return info;
+    }
+
+    public PDDocumentInformation getDocInformation() {
         PDDocumentInformation docInf = new PDDocumentInformation();
         docInf.setCreator("Buddhist Digital Resource Center");
         docInf.setCreationDate(Calendar.getInstance());
         // TODO
         // docInf.setCustomMetadataValue("license", inf.getLicense());
         // docInf.setCustomMetadataValue("URL", inf.getAsset());
-        docInf.setCustomMetadataValue("Bibliographical note", getBiblioNote());
-        docInf.setCustomMetadataValue("Catalog info", getCatalogInfo());
-        docInf.setCustomMetadataValue("Number of volumes", getNumVolumes());
-        docInf.setCustomMetadataValue("Volume number", Integer.toString(inf.igi.volumeNumber));
-        docInf.setCustomMetadataValue("Publisher name", getPublisherName());
-        docInf.setCustomMetadataValue("Publisher location", getPublisherLocation());
-        docInf.setTitle(getPrefLabel());
-        docInf.setAuthor(getAuthor());
+        docInf.setCustomMetadataValue("Bibliographical note", biblioNote);
+        docInf.setCustomMetadataValue("Catalog info", catalogInfo);
+        docInf.setCustomMetadataValue("Number of volumes", numVolumes);
+        docInf.setCustomMetadataValue("Volume number", Integer.toString(volumeNumber));
+        docInf.setCustomMetadataValue("Publisher name", publisherName);
+        docInf.setCustomMetadataValue("Publisher location", publisherLocation);
+        docInf.setTitle(title);
+        docInf.setAuthor(author);
         return docInf;
     }
 
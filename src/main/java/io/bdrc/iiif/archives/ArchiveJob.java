@@ -0,0 +1,132 @@
+package io.bdrc.iiif.archives;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.resolver.IdentifierInfo;
+import io.bdrc.libraries.Identifier;
+
+/**
+ * An archive (pdf or zip) to build. Jobs only hold what is needed to build the
+ * archive again, so that they can be persisted and queued again after a
+ * restart.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ArchiveJob {
+
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+    public static final String CANCELLED = "cancelled";
+
+    // pdf or zip
+    public String type;
+    // the identifier of the request, as in /download/{type}/{id}
+    public String id;
+    public String imageGroupId;
+    // the key of the archive in the store
+    public String output;
+    public String origin;
+    // the client the job is queued for
+    public String owner;
+    // false if only the fair use pages can be put in the archive
+    public boolean fullAccess;
+    // maximum width of the pages, 0 for the original images
+    public int maxWidth = 0;
+    // true for the archives of all the volumes of an item, see ItemArchiveBuilder
+    public boolean item = false;
+    // for the item archives, the volumes the requester cannot download
+    public List<String> excludedVolumes = new ArrayList<>();
+    public volatile String state = QUEUED;
+    public volatile double progress = 0.;
+    // last page written to the archive, not saved: a job queued again after a
+    // restart rebuilds its archive from the start
+    @JsonIgnore
+    public volatile int checkpoint = 0;
+    public long created;
+    public volatile long started = 0;
+    public volatile long finished = 0;
+    // last percentage sent to the listeners of the job
+    volatile int publishedPercent = -1;
+
+    public ArchiveJob() {
+    }
+
+    public ArchiveJob(String type, String id, String imageGroupId, String output, String origin, String owner,
+            boolean fullAccess) {
+        this.type = type;
+        this.id = id;
+        this.imageGroupId = imageGroupId;
+        this.output = output;
+        this.origin = origin;
+        this.owner = owner;
+        this.fullAccess = fullAccess;
+        this.created = System.currentTimeMillis();
+    }
+
+    public static String getKey(String type, String output) {
+        return type + ":" + output;
+    }
+
+    // suffix of the output of the reduced resolution variants
+    public static String getVariantSuffix(int maxWidth) {
+        return maxWidth > 0 ? ":w" + maxWidth : "";
+    }
+
+    @JsonIgnore
+    public String getKey() {
+        return getKey(type, output);
+    }
+
+    // item archives are always stored as zips
+    @JsonIgnore
+    public String getStoreType() {
+        return item ? ArchiveBuilder.ZIP_TYPE : type;
+    }
+
+    @JsonIgnore
+    public IdentifierInfo getIdentifierInfo() throws IIIFException {
+        return new IdentifierInfo(imageGroupId);
+    }
+
+    @JsonIgnore
+    public Identifier getIdentifier() throws IIIFException {
+        try {
+            return new Identifier(id, Identifier.MANIFEST_ID);
+        } catch (Exception e) {
+            throw new IIIFException(404, IIIFException.GENERIC_APP_ERROR_CODE, e);
+        }
+    }
+
+    @JsonIgnore
+    public boolean isActive() {
+        return QUEUED.equals(state) || RUNNING.equals(state);
+    }
+
+    @JsonIgnore
+    public boolean isCancelled() {
+        return CANCELLED.equals(state);
+    }
+
+    // called by the builders after each page, stops the build if the job was
+    // cancelled
+    public void checkpoint(int page, int total) throws IIIFException {
+        if (isCancelled()) {
+            throw new IIIFException(500, IIIFException.GENERIC_APP_ERROR_CODE, "archive job " + getKey() + " was cancelled");
+        }
+        this.checkpoint = page;
+        this.progress = page / ((double) total);
+        ArchiveJobs.pageDone(this);
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveJob [key=" + getKey() + ", owner=" + owner + ", state=" + state + ", progress=" + progress + "]";
+    }
+
+}
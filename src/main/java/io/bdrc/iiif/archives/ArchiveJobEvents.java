@@ -0,0 +1,76 @@
+package io.bdrc.iiif.archives;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Notifies the clients waiting on a job of its changes of state and progress,
+ * so that they don't have to poll it. The listeners are called on a single
+ * thread, in the order of the events, and never on the threads building the
+ * archives.
+ */
+public class ArchiveJobEvents {
+
+    public final static Logger log = LoggerFactory.getLogger(ArchiveJobEvents.class);
+
+    // job key -> listeners
+    static final Map<String, List<Consumer<ArchiveJob>>> listeners = new HashMap<>();
+    private static final ExecutorService notifier = Executors.newSingleThreadExecutor();
+
+    public static synchronized void subscribe(String key, Consumer<ArchiveJob> listener) {
+        List<Consumer<ArchiveJob>> l = listeners.get(key);
+        if (l == null) {
+            l = new ArrayList<>();
+            listeners.put(key, l);
+        }
+        l.add(listener);
+    }
+
+    public static synchronized void unsubscribe(String key, Consumer<ArchiveJob> listener) {
+        final List<Consumer<ArchiveJob>> l = listeners.get(key);
+        if (l != null) {
+            l.remove(listener);
+            if (l.isEmpty()) {
+                listeners.remove(key);
+            }
+        }
+    }
+
+    static void publish(final ArchiveJob job) {
+        final List<Consumer<ArchiveJob>> toNotify;
+        synchronized (ArchiveJobEvents.class) {
+            final List<Consumer<ArchiveJob>> l = listeners.get(job.getKey());
+            if (l == null) {
+                return;
+            }
+            toNotify = new ArrayList<>(l);
+        }
+        notifier.submit(() -> {
+            for (Consumer<ArchiveJob> listener : toNotify) {
+                try {
+                    listener.accept(job);
+                } catch (Exception e) {
+                    log.debug("could not notify a listener of {}", job, e);
+                }
+            }
+        });
+    }
+
+    // the progress is only published when the rounded percentage changes
+    static void progress(ArchiveJob job) {
+        final int percent = (int) Math.round(job.progress * 100);
+        if (percent != job.publishedPercent) {
+            job.publishedPercent = percent;
+            publish(job);
+        }
+    }
+
+}
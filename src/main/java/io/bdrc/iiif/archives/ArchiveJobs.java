@@ -0,0 +1,288 @@
+package io.bdrc.iiif.archives;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.metrics.ArchiveMetrics;
+
+/**
+ * Schedules the archive jobs. Jobs are queued per owner and the workers take
+ * them in turn from each owner, so that a client asking for many archives
+ * doesn't delay the others. A job asked for an archive already queued or being
+ * built is the existing one. The jobs are saved to disk so that they are
+ * queued again after a restart.
+ *
+ * The workers only orchestrate the builds, the pages are fetched on the pool of
+ * PageFetchWindow.
+ */
+public class ArchiveJobs {
+
+    public final static Logger log = LoggerFactory.getLogger(ArchiveJobs.class);
+
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_MAX_QUEUED = 500;
+    // finished jobs are kept for the status requests
+    static final long KEEP_FINISHED_MS = 24 * 3600 * 1000L;
+    static final long SAVE_INTERVAL_MS = 5000;
+    static final String STATE_FILE = "jobs.json";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static final Map<String, ArchiveJob> jobs = new ConcurrentHashMap<>();
+    // owner -> queued jobs, in the order the owners are served
+    static final LinkedHashMap<String, Deque<ArchiveJob>> queues = new LinkedHashMap<>();
+    static final AtomicInteger running = new AtomicInteger(0);
+    static int nbQueued = 0;
+    static int maxQueued = DEFAULT_MAX_QUEUED;
+    static ExecutorService workers = null;
+    static volatile long lastSave = 0;
+    static final ExecutorService saver = Executors.newSingleThreadExecutor();
+    static final AtomicBoolean savePending = new AtomicBoolean(false);
+
+    public static void init() {
+        int nbWorkers = DEFAULT_WORKERS;
+        if (Application.getProperty("archiveJobWorkers") != null) {
+            nbWorkers = Integer.parseInt(Application.getProperty("archiveJobWorkers"));
+        }
+        if (Application.getProperty("archiveJobMaxQueued") != null) {
+            maxQueued = Integer.parseInt(Application.getProperty("archiveJobMaxQueued"));
+        }
+        load();
+        workers = Executors.newFixedThreadPool(nbWorkers);
+        for (int i = 0; i < nbWorkers; i++) {
+            workers.submit(ArchiveJobs::work);
+        }
+        ArchiveMetrics.registerGauges(ArchiveJobs::getNbQueued, running::get);
+        log.info("archive jobs started with {} workers, {} jobs resumed", nbWorkers, getNbQueued());
+    }
+
+    public static synchronized int getNbQueued() {
+        return nbQueued;
+    }
+
+    public static ArchiveJob get(String type, String output) {
+        return jobs.get(ArchiveJob.getKey(type, output));
+    }
+
+    // progress of the job building the archive, null if there is none
+    public static Double getProgress(String type, String output) {
+        final ArchiveJob job = get(type, output);
+        if (job == null || !job.isActive()) {
+            return null;
+        }
+        return job.progress;
+    }
+
+    /**
+     * Queues the job and returns it, or returns the job already queued or
+     * running for the same archive
+     */
+    public static ArchiveJob submit(ArchiveJob job) throws IIIFException {
+        synchronized (ArchiveJobs.class) {
+            final ArchiveJob existing = jobs.get(job.getKey());
+            if (existing != null && existing.isActive()) {
+                return existing;
+            }
+            if (nbQueued >= maxQueued) {
+                throw new IIIFException(503, IIIFException.GENERIC_APP_ERROR_CODE,
+                        "too many archives are being built, please retry later");
+            }
+            enqueue(job);
+            ArchiveJobs.class.notify();
+        }
+        save();
+        return job;
+    }
+
+    // called with the lock held
+    private static void enqueue(ArchiveJob job) {
+        job.state = ArchiveJob.QUEUED;
+        jobs.put(job.getKey(), job);
+        Deque<ArchiveJob> queue = queues.get(job.owner);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(job.owner, queue);
+        }
+        queue.addLast(job);
+        nbQueued++;
+    }
+
+    public static boolean cancel(String type, String output) {
+        final ArchiveJob job = get(type, output);
+        if (job == null || !job.isActive()) {
+            return false;
+        }
+        synchronized (ArchiveJobs.class) {
+            final Deque<ArchiveJob> queue = queues.get(job.owner);
+            if (queue != null && queue.remove(job)) {
+                nbQueued--;
+                if (queue.isEmpty()) {
+                    queues.remove(job.owner);
+                }
+                job.finished = System.currentTimeMillis();
+            }
+            // a running job stops at its next page
+            job.state = ArchiveJob.CANCELLED;
+        }
+        log.info("cancelled {}", job);
+        ArchiveJobEvents.publish(job);
+        save();
+        return true;
+    }
+
+    // takes the first job of the next owner and puts the owner at the end
+    private static synchronized ArchiveJob take() throws InterruptedException {
+        while (nbQueued == 0) {
+            ArchiveJobs.class.wait();
+        }
+        final Iterator<Map.Entry<String, Deque<ArchiveJob>>> it = queues.entrySet().iterator();
+        final Map.Entry<String, Deque<ArchiveJob>> first = it.next();
+        final ArchiveJob job = first.getValue().pollFirst();
+        it.remove();
+        if (!first.getValue().isEmpty()) {
+            queues.put(first.getKey(), first.getValue());
+        }
+        nbQueued--;
+        job.state = ArchiveJob.RUNNING;
+        ArchiveJobEvents.publish(job);
+        return job;
+    }
+
+    private static void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final ArchiveJob job;
+            try {
+                job = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            run(job);
+        }
+    }
+
+    static void run(ArchiveJob job) {
+        running.incrementAndGet();
+        job.started = System.currentTimeMillis();
+        save();
+        try {
+            if (ArchiveFileStore.contains(job.output, job.getStoreType())) {
+                log.info("{} is already in the archive store", job);
+            } else if (job.item) {
+                ItemArchiveBuilder.buildItem(job);
+            } else if (ArchiveBuilder.PDF_TYPE.equals(job.type)) {
+                ArchiveBuilder.buildPdf(job);
+            } else {
+                ArchiveBuilder.buildZip(job);
+            }
+            job.progress = 1.;
+            job.state = ArchiveJob.DONE;
+        } catch (Exception e) {
+            if (!job.isCancelled()) {
+                log.error("archive job {} failed", job, e);
+                job.state = ArchiveJob.FAILED;
+            }
+        } finally {
+            running.decrementAndGet();
+            job.finished = System.currentTimeMillis();
+            ArchiveMetrics.jobFinished(job.type, job.state, job.finished - job.started);
+            ArchiveJobEvents.publish(job);
+            save();
+        }
+    }
+
+    static void pageDone(ArchiveJob job) {
+        ArchiveMetrics.pageDone(job.type);
+        ArchiveJobEvents.progress(job);
+        if (System.currentTimeMillis() - lastSave > SAVE_INTERVAL_MS) {
+            save();
+        }
+    }
+
+    // outside of the archives directory, so that the store doesn't evict it
+    static File getStateFile() {
+        final File dir = new File(ArchiveFileStore.rootDir, "state");
+        dir.mkdirs();
+        return new File(dir, STATE_FILE);
+    }
+
+    // the file is written by the saver thread, a save asked while another one
+    // is pending is done by the pending one
+    static void save() {
+        lastSave = System.currentTimeMillis();
+        if (savePending.compareAndSet(false, true)) {
+            saver.execute(ArchiveJobs::write);
+        }
+    }
+
+    // the jobs to save, finished ones are dropped after KEEP_FINISHED_MS
+    static synchronized List<ArchiveJob> getJobsToSave() {
+        final long now = System.currentTimeMillis();
+        final List<ArchiveJob> toSave = new ArrayList<>();
+        for (ArchiveJob job : jobs.values()) {
+            if (job.isActive() || now - job.finished < KEEP_FINISHED_MS) {
+                toSave.add(job);
+            } else {
+                jobs.remove(job.getKey());
+            }
+        }
+        return toSave;
+    }
+
+    static void write() {
+        savePending.set(false);
+        final List<ArchiveJob> toSave = getJobsToSave();
+        try {
+            final File tmp = ArchiveFileStore.newTempFile(STATE_FILE, "tmp");
+            mapper.writeValue(tmp, toSave);
+            Files.move(tmp.toPath(), getStateFile().toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("could not save the archive jobs", e);
+        }
+    }
+
+    // jobs that were queued or running when the server stopped are queued again
+    static synchronized void load() {
+        final File f = getStateFile();
+        if (!f.isFile()) {
+            return;
+        }
+        try {
+            final ArchiveJob[] saved = mapper.readValue(f, ArchiveJob[].class);
+            for (ArchiveJob job : Arrays.asList(saved)) {
+                if (job.isActive()) {
+                    log.info("re-queuing {}, its archive is built again from the start", job);
+                    job.progress = 0.;
+                    enqueue(job);
+                } else if (!ArchiveJob.DONE.equals(job.state) || ArchiveFileStore.contains(job.output, job.getStoreType())) {
+                    jobs.put(job.getKey(), job);
+                }
+            }
+        } catch (IOException e) {
+            log.error("could not load the archive jobs from {}", f, e);
+        }
+    }
+
+}
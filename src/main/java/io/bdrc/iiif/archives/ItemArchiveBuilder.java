@@ -0,0 +1,262 @@
+package io.bdrc.iiif.archives;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
+
+import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.image.service.ImageGroupInfoService;
+import io.bdrc.iiif.resolver.IdentifierInfo;
+import io.bdrc.iiif.resolver.ImageInfo;
+
+/**
+ * Builds the archive of all the volumes of an item in a single zip: either the
+ * images of all the volumes, or the pdfs of the volumes. The volumes are
+ * resolved concurrently and the pages of all the volumes go through a single
+ * fetch window, so the first pages of a volume are fetched while the end of the
+ * previous one is written.
+ */
+public class ItemArchiveBuilder {
+
+    public final static Logger log = LoggerFactory.getLogger(ItemArchiveBuilder.class);
+
+    public static final String ITEM_MARK = ":item-";
+
+    static class Volume {
+        String imageGroupId;
+        int volumeNumber;
+        IdentifierInfo inf;
+        List<ImageInfo> images;
+        // in pdf mode, the pdf of the volume found in the store
+        File stored = null;
+        // in pdf mode, the metadata of the volume
+        CompletableFuture<ArchiveInfo> archiveInfo = null;
+
+        String getFolder() {
+            return String.format("%03d", volumeNumber) + "-" + imageGroupId.substring(imageGroupId.indexOf(':') + 1);
+        }
+    }
+
+    // the output is always a zip, the type is the type of its content. The
+    // excluded volumes are the ones the requester cannot download, the
+    // archives without them must not be served to the other clients
+    public static String getOutput(String itemId, boolean fairUseOnly, String type, List<String> excluded, int maxWidth) {
+        return itemId + (fairUseOnly ? "FAIR_USE" : "") + ITEM_MARK + type + getExclusionSuffix(excluded)
+                + ArchiveJob.getVariantSuffix(maxWidth);
+    }
+
+    static String getExclusionSuffix(List<String> excluded) {
+        if (excluded == null || excluded.isEmpty()) {
+            return "";
+        }
+        return ":x" + DigestUtils.md5DigestAsHex(String.join(",", excluded).getBytes(StandardCharsets.UTF_8)).substring(0, 8);
+    }
+
+    public static boolean isItemOutput(String output) {
+        return output.contains(ITEM_MARK);
+    }
+
+    // the item of an output built by getOutput
+    public static String getItemId(String output) {
+        final String id = output.substring(0, output.indexOf(ITEM_MARK));
+        return id.endsWith("FAIR_USE") ? id.substring(0, id.length() - "FAIR_USE".length()) : id;
+    }
+
+    public static List<String> getVolumeIds(PdfItemInfo item) {
+        final List<String> volumeIds = new ArrayList<>();
+        for (String uri : item.getItemVolumes()) {
+            volumeIds.add("bdr:" + uri.substring(uri.lastIndexOf('/') + 1));
+        }
+        return volumeIds;
+    }
+
+    static List<Volume> resolveVolumes(final ArchiveJob job) throws IIIFException {
+        final PdfItemInfo item = PdfItemInfo.getPdfItemInfo(job.imageGroupId);
+        final int sizeLimit = Integer.parseInt(Application.getProperty("imgSizeLimit"));
+        final List<String> volumeIds = getVolumeIds(item);
+        volumeIds.removeAll(job.excludedVolumes);
+        // one lookup for the info of all the volumes
+        ImageGroupInfoService.Instance.getBatch(volumeIds);
+        final List<CompletableFuture<Volume>> futures = new ArrayList<>();
+        for (String uri : item.getItemVolumes()) {
+            final String shortName = uri.substring(uri.lastIndexOf('/') + 1);
+            if (job.excludedVolumes.contains("bdr:" + shortName)) {
+                continue;
+            }
+            final String volNum = item.getItemVolumeNumber(shortName);
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    final Volume v = new Volume();
+                    v.imageGroupId = "bdr:" + shortName;
+                    v.volumeNumber = volNum == null ? 0 : Integer.parseInt(volNum);
+                    v.inf = new IdentifierInfo(v.imageGroupId);
+                    v.images = new ArrayList<>(v.inf.ensureImageListInfo(job.fullAccess, 1, v.inf.getTotalPages()));
+                    v.images.removeIf(imgInf -> imgInf.size != null && imgInf.size > sizeLimit);
+                    if (ArchiveBuilder.PDF_TYPE.equals(job.type)) {
+                        v.archiveInfo = ArchiveInfo.getAsync(v.inf);
+                    }
+                    return v;
+                } catch (IIIFException e) {
+                    throw new CompletionException(e);
+                }
+            }, PageFetchWindow.fetchService));
+        }
+        final List<Volume> volumes = new ArrayList<>();
+        try {
+            for (CompletableFuture<Volume> fut : futures) {
+                volumes.add(fut.join());
+            }
+        } catch (CompletionException e) {
+            throw new IIIFException(500, IIIFException.GENERIC_APP_ERROR_CODE, "could not resolve the volumes of "
+                    + job.imageGroupId + ": " + e.getCause().getMessage());
+        }
+        volumes.sort(Comparator.comparingInt(v -> v.volumeNumber));
+        return volumes;
+    }
+
+    // key of the full volume pdf in the store, as built by ArchiveBuilder
+    static String getVolumeOutput(ArchiveJob job, Volume v) {
+        final boolean fairUseOnly = v.inf.isFairUse() && !job.fullAccess;
+        return v.imageGroupId + (fairUseOnly ? "FAIR_USE" : "") + ":1-" + v.inf.getTotalPages()
+                + ArchiveJob.getVariantSuffix(job.maxWidth);
+    }
+
+    public static void buildItem(ArchiveJob job) throws IIIFException {
+        File tmp = null;
+        try {
+            tmp = ArchiveFileStore.newTempFile(job.output, ArchiveBuilder.ZIP_TYPE);
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                writeItem(job, os);
+            }
+            ArchiveFileStore.commit(tmp, job.output, ArchiveBuilder.ZIP_TYPE);
+            log.info("Put item archive in archive store with key {}", job.output);
+        } catch (IOException e) {
+            log.error("Error while building item archive ", e.getMessage());
+            throw new IIIFException(500, IIIFException.GENERIC_APP_ERROR_CODE, e);
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    public static void writeItem(ArchiveJob job, OutputStream os) throws IIIFException {
+        long deb = System.currentTimeMillis();
+        final boolean pdf = ArchiveBuilder.PDF_TYPE.equals(job.type);
+        PageFetchWindow window = null;
+        try {
+            final List<Volume> volumes = resolveVolumes(job);
+            Application.logPerf("{} volumes of item {} resolved after {}", volumes.size(), job.imageGroupId,
+                    System.currentTimeMillis() - deb);
+            final List<IdentifierInfo> infs = new ArrayList<>();
+            final List<ImageInfo> images = new ArrayList<>();
+            for (Volume v : volumes) {
+                if (pdf) {
+                    v.stored = ArchiveFileStore.get(getVolumeOutput(job, v), ArchiveBuilder.PDF_TYPE);
+                    if (v.stored != null) {
+                        continue;
+                    }
+                }
+                for (ImageInfo imgInf : v.images) {
+                    infs.add(v.inf);
+                    images.add(imgInf);
+                }
+            }
+            final int total = images.size();
+            window = new PageFetchWindow(infs, images, job.origin, PageFetchWindow.getWindowSize(), job.maxWidth);
+            final ZipOutputStream zipOut = new ZipOutputStream(os);
+            final CRC32 crc = new CRC32();
+            int k = 0;
+            for (Volume v : volumes) {
+                if (!pdf) {
+                    for (int i = 0; i < v.images.size(); i++) {
+                        byte[] img = window.next();
+                        if (img == null) {
+                            try {
+                                img = ArchiveBuilder.toByteArray(ArchiveImageProducer
+                                        .getBufferedMissingImage("Page " + (i + 1) + " couldn't be found"));
+                            } catch (IOException e) {
+                                // as in ArchiveBuilder.writeZip, the page is skipped
+                                log.error("Could not get Buffered Missing image from producer for page {} of volume {}",
+                                        i + 1, v.imageGroupId);
+                                k++;
+                                job.checkpoint(k, total);
+                                continue;
+                            }
+                        }
+                        ArchiveBuilder.writeStoredEntry(zipOut,
+                                v.getFolder() + "/" + ArchiveBuilder.getEntryName(v.images.get(i), job.maxWidth), img, crc);
+                        k++;
+                        job.checkpoint(k, total);
+                    }
+                } else if (v.stored != null) {
+                    ArchiveBuilder.writeStoredEntry(zipOut, v.getFolder() + ".pdf", v.stored);
+                } else {
+                    k = writeVolumePdf(job, v, window, zipOut, k, total);
+                }
+            }
+            zipOut.finish();
+            os.flush();
+            Application.logPerf("item archive {} finished after {}", job.output, System.currentTimeMillis() - deb);
+        } catch (IIIFException e) {
+            if (window != null) {
+                window.cancel();
+            }
+            throw e;
+        } catch (IOException | InterruptedException e) {
+            log.error("Error while building item archive ", e.getMessage());
+            if (window != null) {
+                window.cancel();
+            }
+            throw new IIIFException(500, IIIFException.GENERIC_APP_ERROR_CODE, e);
+        }
+    }
+
+    // builds the pdf of the volume, writes it in the zip and puts it in the
+    // store for the volume downloads. Returns the number of pages written so far.
+    static int writeVolumePdf(ArchiveJob job, Volume v, PageFetchWindow window, ZipOutputStream zipOut, int k, int total)
+            throws IOException, InterruptedException, IIIFException {
+        final String volumeOutput = getVolumeOutput(job, v);
+        final File tmp = ArchiveFileStore.newTempFile(volumeOutput, ArchiveBuilder.PDF_TYPE);
+        try {
+            final List<String> pages = new ArrayList<>();
+            try (PDDocument doc = new PDDocument(MemoryUsageSetting.setupTempFileOnly())) {
+                for (int i = 0; i < v.images.size(); i++) {
+                    final String indexName = ArchiveBuilder.addPage(doc, v.images.get(i), window.next(), i + 1,
+                            v.imageGroupId);
+                    if (indexName != null) {
+                        pages.add(indexName);
+                    }
+                    k++;
+                    job.checkpoint(k, total);
+                }
+                doc.setDocumentInformation(ArchiveInfo.get(v.archiveInfo, v.inf).getDocInformation());
+                doc.save(tmp);
+            }
+            ArchiveBuilder.writeStoredEntry(zipOut, v.getFolder() + ".pdf", tmp);
+            ArchiveFileStore.commit(tmp, volumeOutput, ArchiveBuilder.PDF_TYPE);
+            PdfPageIndex.write(volumeOutput, pages);
+        } finally {
+            tmp.delete();
+        }
+        return k;
+    }
+
+}
@@ -0,0 +1,144 @@
+package io.bdrc.iiif.archives;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.image.service.ThumbnailService;
+import io.bdrc.iiif.model.ImageApiProfile.Format;
+import io.bdrc.iiif.model.ImageApiProfile.Quality;
+import io.bdrc.iiif.model.ImageApiSelector;
+import io.bdrc.iiif.resolver.IdentifierInfo;
+import io.bdrc.iiif.resolver.ImageInfo;
+
+/**
+ * Fetches the original images of an archive in order, with at most windowSize
+ * fetches ahead of the consumer: a new fetch is only started when the consumer
+ * takes a page, so the memory used by a build doesn't depend on the number of
+ * pages. When a maximum width is given, the images wider than it are scaled
+ * down and encoded in jpeg on the pool of ThumbnailService.
+ */
+public class PageFetchWindow {
+
+    public final static Logger log = LoggerFactory.getLogger(PageFetchWindow.class);
+
+    public static final int DEFAULT_WINDOW = 8;
+
+    // separate from the pool running the builds, so that builds cannot starve
+    // their own fetches
+    static final ExecutorService fetchService = Executors.newFixedThreadPool(32);
+
+    // image group of each image, the images can span several image groups
+    final List<IdentifierInfo> infs;
+    final List<ImageInfo> images;
+    final String origin;
+    final int windowSize;
+    final int maxWidth;
+    final Deque<Future<Object[]>> window = new ArrayDeque<>();
+    int nextToSubmit = 0;
+
+    public PageFetchWindow(final IdentifierInfo inf, final List<ImageInfo> images, final String origin) {
+        this(inf, images, origin, getWindowSize(), 0);
+    }
+
+    public PageFetchWindow(final IdentifierInfo inf, final List<ImageInfo> images, final String origin, final int windowSize,
+            final int maxWidth) {
+        this(Collections.nCopies(images.size(), inf), images, origin, windowSize, maxWidth);
+    }
+
+    public PageFetchWindow(final List<IdentifierInfo> infs, final List<ImageInfo> images, final String origin,
+            final int windowSize, final int maxWidth) {
+        this.infs = infs;
+        this.images = images;
+        this.origin = origin;
+        this.windowSize = Math.max(1, windowSize);
+        this.maxWidth = maxWidth;
+        fill();
+    }
+
+    // true if the image is scaled down and encoded in jpeg by the window
+    public static boolean isReduced(final ImageInfo imgInf, final int maxWidth) {
+        return maxWidth > 0 && imgInf.width > maxWidth;
+    }
+
+    static ImageApiSelector getReducedSelector(final IdentifierInfo inf, final String filename, final int maxWidth) {
+        final ImageApiSelector selector = new ImageApiSelector();
+        selector.setIdentifier(inf.volumeId + "::" + filename);
+        selector.setRegion("full");
+        selector.setSize(maxWidth + ",");
+        selector.setRotation("0");
+        selector.setQuality(Quality.DEFAULT);
+        selector.setFormat(Format.JPG);
+        return selector;
+    }
+
+    static int getWindowSize() {
+        final String size = Application.getProperty("archiveFetchWindow");
+        return size == null ? DEFAULT_WINDOW : Integer.parseInt(size);
+    }
+
+    private void fill() {
+        while (window.size() < windowSize && nextToSubmit < images.size()) {
+            final ImageInfo imgInf = images.get(nextToSubmit);
+            final IdentifierInfo inf = infs.get(nextToSubmit);
+            final String filename = imgInf.filename;
+            if (isReduced(imgInf, maxWidth)) {
+                final ImageApiSelector selector = getReducedSelector(inf, filename, maxWidth);
+                window.addLast(ThumbnailService.service.submit(new Callable<Object[]>() {
+                    @Override
+                    public Object[] call() throws Exception {
+                        return new Object[] { ThumbnailService.render(inf, filename, selector), filename };
+                    }
+                }));
+                nextToSubmit++;
+                continue;
+            }
+            window.addLast(fetchService.submit(new Callable<Object[]>() {
+                @Override
+                public Object[] call() throws Exception {
+                    return ArchiveImageProducer.getImageAsBytes(inf, filename, origin);
+                }
+            }));
+            nextToSubmit++;
+        }
+    }
+
+    public boolean hasNext() {
+        return !window.isEmpty();
+    }
+
+    /**
+     * Returns the bytes of the next image in the list, or null if it could not be
+     * fetched
+     */
+    public byte[] next() throws InterruptedException {
+        final IdentifierInfo inf = infs.get(nextToSubmit - window.size());
+        final Future<Object[]> fut = window.pollFirst();
+        fill();
+        try {
+            return (byte[]) fut.get()[0];
+        } catch (ExecutionException e) {
+            log.error("could not fetch image for {}", inf.volumeId, e.getCause());
+            return null;
+        }
+    }
+
+    // cancels the fetches that were not consumed, when a build fails
+    public void cancel() {
+        for (Future<Object[]> fut : window) {
+            fut.cancel(true);
+        }
+        window.clear();
+    }
+
+}
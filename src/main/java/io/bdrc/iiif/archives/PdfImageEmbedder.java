@@ -0,0 +1,129 @@
+package io.bdrc.iiif.archives;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.CCITTFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the pdf image objects of the archive pages. Baseline jpegs are
+ * embedded as they are in a DCTDecode stream and single strip Group 4 tiffs as
+ * a CCITTFaxDecode stream, without decoding them. Other images are decoded by
+ * PDFBox.
+ */
+public class PdfImageEmbedder {
+
+    public final static Logger log = LoggerFactory.getLogger(PdfImageEmbedder.class);
+
+    static final int TIFF_TAG_COMPRESSION = 259;
+    static final int TIFF_TAG_STRIP_OFFSETS = 273;
+    static final int TIFF_COMPRESSION_G4 = 4;
+
+    public static PDImageXObject createImage(final PDDocument doc, final byte[] bytes) throws IOException {
+        if (isBaselineJpeg(bytes)) {
+            try {
+                return JPEGFactory.createFromByteArray(doc, bytes);
+            } catch (IOException e) {
+                log.debug("jpeg passthrough failed, decoding the image", e);
+            }
+        } else if (isSingleStripG4Tiff(bytes)) {
+            try {
+                return CCITTFactory.createFromByteArray(doc, bytes);
+            } catch (IOException e) {
+                log.debug("ccitt passthrough failed, decoding the image", e);
+            }
+        }
+        return PDImageXObject.createFromByteArray(doc, bytes, "");
+    }
+
+    // true if the first frame header of the jpeg is a baseline or extended
+    // sequential huffman one
+    public static boolean isBaselineJpeg(final byte[] b) {
+        if (b == null || b.length < 4 || (b[0] & 0xFF) != 0xFF || (b[1] & 0xFF) != 0xD8) {
+            return false;
+        }
+        int i = 2;
+        while (i + 3 < b.length) {
+            if ((b[i] & 0xFF) != 0xFF) {
+                return false;
+            }
+            final int marker = b[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // fill byte
+                i++;
+                continue;
+            }
+            if (marker == 0xC0 || marker == 0xC1) {
+                return true;
+            }
+            // other SOF markers: progressive, lossless, arithmetic
+            if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                return false;
+            }
+            // start of scan before any frame header
+            if (marker == 0xDA || marker == 0xD9) {
+                return false;
+            }
+            final int length = ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+            i += 2 + length;
+        }
+        return false;
+    }
+
+    // true if the first image of the tiff is Group 4 compressed in a single strip
+    public static boolean isSingleStripG4Tiff(final byte[] b) {
+        if (b == null || b.length < 8) {
+            return false;
+        }
+        final boolean le;
+        if (b[0] == 'I' && b[1] == 'I') {
+            le = true;
+        } else if (b[0] == 'M' && b[1] == 'M') {
+            le = false;
+        } else {
+            return false;
+        }
+        if (readShort(b, 2, le) != 42) {
+            return false;
+        }
+        final long ifd = readInt(b, 4, le);
+        if (ifd < 8 || ifd + 2 > b.length) {
+            return false;
+        }
+        final int nbEntries = readShort(b, (int) ifd, le);
+        int compression = -1;
+        long nbStrips = -1;
+        for (int k = 0; k < nbEntries; k++) {
+            final int entry = (int) ifd + 2 + k * 12;
+            if (entry + 12 > b.length) {
+                return false;
+            }
+            final int tag = readShort(b, entry, le);
+            if (tag == TIFF_TAG_COMPRESSION) {
+                compression = readShort(b, entry + 8, le);
+            } else if (tag == TIFF_TAG_STRIP_OFFSETS) {
+                nbStrips = readInt(b, entry + 4, le);
+            }
+        }
+        return compression == TIFF_COMPRESSION_G4 && nbStrips == 1;
+    }
+
+    private static int readShort(final byte[] b, final int off, final boolean le) {
+        if (le) {
+            return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+        }
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    private static long readInt(final byte[] b, final int off, final boolean le) {
+        if (le) {
+            return ((long) readShort(b, off + 2, le) << 16) | readShort(b, off, le);
+        }
+        return ((long) readShort(b, off, le) << 16) | readShort(b, off + 2, le);
+    }
+
+}
@@ -1,9 +1,13 @@
 package io.bdrc.iiif.archives;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
@@ -15,7 +19,9 @@ import org.slf4j.LoggerFactory;
 
 import io.bdrc.iiif.core.Application;
 import io.bdrc.iiif.core.EHServerCache;
+import io.bdrc.iiif.core.MetadataStore;
 import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.image.service.LdsClient;
 
 public class PdfItemInfo {
 
@@ -34,23 +40,53 @@ public class PdfItemInfo {
     public static String TMP = "http://purl.bdrc.io/ontology/tmp/";
     private Model itemModel;
 
+    // suffix of the keys in the cache, after the item id
+    public static final String CACHE_SUFFIX = "_PdfItemInfo";
+
+    private static final MetadataStore<PdfItemInfo> store = MetadataStore.get("pdfItemInfo", PdfItemInfo::writeTo,
+            PdfItemInfo::readFrom);
+
     public static PdfItemInfo getPdfItemInfo(String itemId) throws IIIFException {
 
-        PdfItemInfo meta = (PdfItemInfo) EHServerCache.PDF_ITEM_INFO.get(itemId + "_PdfItemInfo");
+        final String key = itemId + CACHE_SUFFIX;
+        PdfItemInfo meta = (PdfItemInfo) EHServerCache.PDF_ITEM_INFO.get(key);
+        if (meta == null && store != null) {
+            final MetadataStore.Entry<PdfItemInfo> entry = store.get(key);
+            if (entry != null) {
+                meta = entry.value;
+                EHServerCache.PDF_ITEM_INFO.put(key, meta);
+                if (!entry.isFresh()) {
+                    store.refresh(key, () -> new PdfItemInfo(itemId), m -> EHServerCache.PDF_ITEM_INFO.put(key, m));
+                }
+            }
+        }
         if (meta == null) {
             meta = new PdfItemInfo(itemId);
-            EHServerCache.PDF_ITEM_INFO.put(itemId + "_PdfItemInfo", meta);
+            EHServerCache.PDF_ITEM_INFO.put(key, meta);
+            if (store != null) {
+                store.put(key, meta);
+            }
         }
         return meta;
     }
 
-    private PdfItemInfo(String itemId) {
+    // read from the metadata store, all the values are there so the model
+    // stays empty
+    private PdfItemInfo() {
+        this.itemModel = ModelFactory.createDefaultModel();
+    }
+
+    private PdfItemInfo(String itemId) throws IIIFException {
         super();
         this.itemModel = ModelFactory.createDefaultModel();
         if (itemId != null) {
             this.itemId = itemId;
             log.info("PDF Info Url {}", ITEM_URL_ROOT + itemId + "&format=ttl");
-            itemModel.read(ITEM_URL_ROOT + itemId + "&format=ttl", "TURTLE");
+            try {
+                this.itemModel = LdsClient.readModel(ITEM_URL_ROOT + itemId + "&format=ttl");
+            } catch (IOException e) {
+                throw new IIIFException(500, IIIFException.GENERIC_APP_ERROR_CODE, e);
+            }
         }
     }
 
@@ -94,6 +130,39 @@ public class PdfItemInfo {
         return getItemVolumeNumbers().get(volumeId);
     }
 
+    static void writeTo(final DataOutput out, final PdfItemInfo info) throws IOException {
+        MetadataStore.writeString(out, info.itemId);
+        MetadataStore.writeString(out, info.getItemAccess());
+        final List<String> volumes = info.getItemVolumes();
+        out.writeInt(volumes.size());
+        for (String vol : volumes) {
+            out.writeUTF(vol);
+        }
+        final HashMap<String, String> numbers = info.getItemVolumeNumbers();
+        out.writeInt(numbers.size());
+        for (Map.Entry<String, String> e : numbers.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue());
+        }
+    }
+
+    static PdfItemInfo readFrom(final DataInput in) throws IOException {
+        final PdfItemInfo info = new PdfItemInfo();
+        info.itemId = MetadataStore.readString(in);
+        info.itemAccess = MetadataStore.readString(in);
+        final int nbVolumes = in.readInt();
+        info.itemVolumes = new ArrayList<>(nbVolumes);
+        for (int i = 0; i < nbVolumes; i++) {
+            info.itemVolumes.add(in.readUTF());
+        }
+        final int nbNumbers = in.readInt();
+        info.volNumbers = new HashMap<>();
+        for (int i = 0; i < nbNumbers; i++) {
+            info.volNumbers.put(in.readUTF(), in.readUTF());
+        }
+        return info;
+    }
+
     @Override
     public String toString() {
         return "PdfItemInfo [itemId=" + itemId + ", itemVolumes=" + itemVolumes + ", volNumbers=" + volNumbers + ", itemAccess=" + itemAccess
@@ -0,0 +1,56 @@
+package io.bdrc.iiif.archives;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Index of the pages of a pdf of the archive store: the file names of the
+ * images, in the order of the pages, stored next to the pdf. Pages for which
+ * the original image couldn't be fetched have an empty file name.
+ */
+public class PdfPageIndex {
+
+    public final static Logger log = LoggerFactory.getLogger(PdfPageIndex.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static void write(String key, List<String> filenames) throws IOException {
+        final File tmp = ArchiveFileStore.newTempFile(key, ArchiveFileStore.INDEX_TYPE);
+        try {
+            mapper.writeValue(tmp, filenames);
+            ArchiveFileStore.commitIndex(tmp, key, ArchiveBuilder.PDF_TYPE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    // file name -> page index (starting at 0), null if the pdf has no index
+    public static Map<String, Integer> read(String key) {
+        final File f = ArchiveFileStore.getIndexFile(key, ArchiveBuilder.PDF_TYPE);
+        if (!f.isFile()) {
+            return null;
+        }
+        try {
+            final String[] filenames = mapper.readValue(f, String[].class);
+            final Map<String, Integer> res = new HashMap<>();
+            for (int i = 0; i < filenames.length; i++) {
+                if (!filenames[i].isEmpty()) {
+                    res.put(filenames[i], i);
+                }
+            }
+            return res;
+        } catch (IOException e) {
+            log.error("could not read the page index of {}", key, e);
+            return null;
+        }
+    }
+
+}
@@ -11,6 +11,7 @@ import io.bdrc.auth.Access.AccessLevel;
 import io.bdrc.iiif.core.Application;
 import io.bdrc.iiif.core.GeoLocation;
 import io.bdrc.iiif.resolver.IdentifierInfo;
+import io.bdrc.iiif.resolver.ImageGroupIndex;
 import io.bdrc.iiif.resolver.ImageGroupInfo;
 
 public class ResourceAccessValidation {
@@ -24,6 +25,7 @@ public class ResourceAccessValidation {
     String imageInstanceUri;
     String imageFileName = null;
     ImageGroupInfo igi;
+    ImageGroupIndex index;
     boolean isRestrictedInChina;
 
     public ResourceAccessValidation(Access access, IdentifierInfo idInfo, String imageFileName) {
@@ -36,6 +38,7 @@ public class ResourceAccessValidation {
         this.isRestrictedInChina = idInfo.igi.restrictedInChina;
         this.imageInstanceUri = idInfo.igi.imageInstanceId;
         this.igi = idInfo.igi;
+        this.index = idInfo.index;
         this.imageFileName = imageFileName;
     }
 
@@ -49,6 +52,7 @@ public class ResourceAccessValidation {
         this.isRestrictedInChina = idInfo.igi.restrictedInChina;
         this.imageInstanceUri = idInfo.igi.imageInstanceId;
         this.igi = idInfo.igi;
+        this.index = idInfo.index;
     }
 
     public Access getAccess() {
@@ -80,7 +84,12 @@ public class ResourceAccessValidation {
     }
 
     public boolean isAccessible(HttpServletRequest request) {
-        AccessLevel al = getAccessLevel(request);
+        return isAccessible(getAccessLevel(request), imageFileName);
+    }
+
+    // per image decision, for callers that compute the access level only once
+    // for a whole image group
+    public boolean isAccessible(AccessLevel al, String imageFileName) {
         log.info("Is accessible accessLevel is {} and accessShort={}", al, accessShort);
         if (al.equals(AccessLevel.OPEN))
             return true;
@@ -92,8 +101,10 @@ public class ResourceAccessValidation {
             try {
                 // This alone do not check against the user profile as the list
                 // is built through identifierInfo regardless that user profile
-                log.info("Does not match Res Permissions so returning new test from igi: {} ", this.igi.isAccessibleInFairUse(imageFileName));
-                return this.igi.isAccessibleInFairUse(imageFileName);
+                final boolean accessible = index != null ? index.isAccessibleInFairUse(imageFileName)
+                        : this.igi.isAccessibleInFairUse(imageFileName);
+                log.info("Does not match Res Permissions so returning new test from igi: {} ", accessible);
+                return accessible;
             } catch (Exception e) {
                 log.error("error when looking at fair use case: ", e);
                 return false;
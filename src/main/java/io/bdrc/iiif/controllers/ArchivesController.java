@@ -1,12 +1,16 @@
 package io.bdrc.iiif.controllers;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -15,6 +19,8 @@ import org.apache.http.client.ClientProtocolException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -23,19 +29,26 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import de.digitalcollections.model.api.identifiable.resource.exceptions.ResourceNotFoundException;
 import io.bdrc.auth.Access;
 import io.bdrc.auth.Access.AccessLevel;
+import io.bdrc.auth.rdf.RdfConstants;
 import io.bdrc.iiif.archives.ArchiveBuilder;
-import io.bdrc.iiif.archives.ArchiveProducer;
+import io.bdrc.iiif.archives.ArchiveFileStore;
+import io.bdrc.iiif.archives.ArchiveJob;
+import io.bdrc.iiif.archives.ArchiveJobEvents;
+import io.bdrc.iiif.archives.ArchiveJobs;
+import io.bdrc.iiif.archives.ItemArchiveBuilder;
 import io.bdrc.iiif.archives.PdfItemInfo;
 import io.bdrc.iiif.auth.ResourceAccessValidation;
 import io.bdrc.iiif.core.Application;
-import io.bdrc.iiif.core.EHServerCache;
 import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.image.service.ImageGroupInfoService;
 import io.bdrc.iiif.resolver.IdentifierInfo;
 import io.bdrc.libraries.Identifier;
 
@@ -44,6 +57,12 @@ public class ArchivesController {
 
     public static final String IIIF = "IIIF";
     public static final String IIIF_ZIP = "IIIF_ZIP";
+    public static final String SCREEN_QUALITY = "screen";
+    public static final int SCREEN_WIDTH = 1500;
+    public static final int MIN_WIDTH = 100;
+    public static final long EVENTS_TIMEOUT_MS = 30 * 60 * 1000L;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
 
     public final static Logger log = LoggerFactory.getLogger(ArchivesController.class.getName());
 
@@ -58,6 +77,7 @@ public class ArchivesController {
         String format = request.getHeader("Accept");
         boolean json = format.contains("application/json");
         String output = null;
+        final int maxWidth = getMaxWidth(request);
         Identifier idf = new Identifier(id, Identifier.MANIFEST_ID);
         log.info("Building identifier for id {}", id);
         log.info("Building from page {} to {}", idf.getBPageNum(), idf.getEPageNum());
@@ -123,35 +143,19 @@ public class ArchivesController {
                 } else {
                     output = idf.getImageGroupId() + ":" + bPage.intValue() + "-" + ePage.intValue();// +"."+type;
                 }
+                output = output + ArchiveJob.getVariantSuffix(maxWidth);
                 log.info("Built output is {}", output);
                 Boolean cached = false;
                 Double percentdone = null;
-                if (type.equals(ArchiveBuilder.PDF_TYPE)) {
-                    percentdone = ArchiveBuilder.pdfjobs.get(output);
-                    cached = EHServerCache.IIIF_PDF.containsKey(output);
-                    log.error("PDF {} from IIIF cached {}, jobstarted: {}", id, cached, percentdone);
-                    if (!cached && percentdone == null) {
-                        // Start building pdf since the pdf file doesn't exist yet
-                        if (!Application.isPdfSync()) {
-                            ArchiveBuilder.service.submit(new ArchiveProducer(accValidation.getAccess(), inf, idf, output,
-                                    (String) request.getAttribute("origin"), ArchiveProducer.PDF));
-                            //ArchiveBuilder.buildPdf(accValidation.getAccess(), inf, idf, output,
-                            //        (String) request.getAttribute("origin"));
-                        }
-                    }
-                }
-                if (type.equals(ArchiveBuilder.ZIP_TYPE)) {
-                    cached = EHServerCache.IIIF_ZIP.containsKey(output);
-                    percentdone = ArchiveBuilder.zipjobs.get(output);
-                    log.debug("ZIP {} from IIIF_ZIP cached: {}, jobstarted: {}", id, cached, percentdone);
-                    if (!cached &&  percentdone == null) {
-                        // Build pdf since the pdf file doesn't exist yet
-                        if (!Application.isPdfSync()) {
-                            ArchiveBuilder.buildZip(accValidation.getAccess(), inf, idf, output,
-                                    (String) request.getAttribute("origin"));
-                            //ArchiveBuilder.service.submit(new ArchiveProducer(accValidation.getAccess(), inf, idf, output,
-                            //        (String) request.getAttribute("origin"), ArchiveProducer.ZIP));
-                        }
+                if (type.equals(ArchiveBuilder.PDF_TYPE) || type.equals(ArchiveBuilder.ZIP_TYPE)) {
+                    cached = ArchiveFileStore.contains(output, type);
+                    percentdone = ArchiveJobs.getProgress(type, output);
+                    log.info("{} {} in archive store: {}, job progress: {}", type, id, cached, percentdone);
+                    if (!cached && percentdone == null && !Application.isPdfSync()) {
+                        // Start building the archive since the file doesn't exist yet
+                        ArchiveJob job = ArchiveJobs.submit(newJob(type, id, idf.getImageGroupId(), output,
+                                maxWidth, accValidation.getAccess(), request));
+                        percentdone = job.progress;
                     }
                 }
                 //log.error("sync mode: {}", Application.isPdfSync());
@@ -195,49 +199,135 @@ public class ArchivesController {
 
     }
 
+    @RequestMapping(value = "/download/item/{type}/{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public ResponseEntity<?> getItemArchive(@PathVariable String id, @PathVariable String type,
+            HttpServletRequest request) throws Exception {
+        log.info("getItemArchive(id {}, type {})", id, type);
+        if (!type.equals(ArchiveBuilder.PDF_TYPE) && !type.equals(ArchiveBuilder.ZIP_TYPE)) {
+            return new ResponseEntity<>("Unknown archive type", HttpStatus.NOT_FOUND);
+        }
+        Access acc = (Access) request.getAttribute("access");
+        if (acc == null) {
+            acc = new Access();
+        }
+        Identifier idf = new Identifier(id, Identifier.MANIFEST_ID);
+        if (idf.getSubType() != Identifier.MANIFEST_ID_WORK_IN_ITEM) {
+            return new ResponseEntity<>("Item archives need an item identifier", HttpStatus.NOT_FOUND);
+        }
+        PdfItemInfo item = PdfItemInfo.getPdfItemInfo(idf.getImageInstanceId());
+        if (!acc.hasResourceAccess(item.getItemAccess())) {
+            return new ResponseEntity<>("Insufficient rights", HttpStatus.FORBIDDEN);
+        }
+        final List<String> excluded = getExcludedVolumes(item, acc, request);
+        if (excluded.size() >= item.getItemVolumes().size()) {
+            return new ResponseEntity<>("Insufficient rights", HttpStatus.FORBIDDEN);
+        }
+        final int maxWidth = getMaxWidth(request);
+        final boolean fullAccess = acc.hasResourceAccess(RdfConstants.FAIR_USE);
+        final String output = ItemArchiveBuilder.getOutput(idf.getImageInstanceId(), !fullAccess, type, excluded,
+                maxWidth);
+        final ArchiveJob job = newJob(type, id, idf.getImageInstanceId(), output, maxWidth, acc, request);
+        job.item = true;
+        job.excludedVolumes = excluded;
+        HttpHeaders headers = new HttpHeaders();
+        if (Application.isPdfSync() && !ArchiveFileStore.contains(output, ArchiveBuilder.ZIP_TYPE)) {
+            // the volumes are written to the response as they are built
+            StreamingResponseBody body = os -> {
+                try {
+                    ItemArchiveBuilder.writeItem(job, os);
+                } catch (IIIFException e) {
+                    throw new IOException(e);
+                }
+            };
+            headers.setContentType(MediaType.parseMediaType("application/" + ArchiveBuilder.ZIP_TYPE));
+            headers.setContentDispositionFormData("attachment", getFileName(output) + "." + ArchiveBuilder.ZIP_TYPE);
+            return new ResponseEntity<StreamingResponseBody>(body, headers, HttpStatus.OK);
+        }
+        HashMap<String, String> json = new HashMap<>();
+        if (ArchiveFileStore.contains(output, ArchiveBuilder.ZIP_TYPE)) {
+            json.put("status", "done");
+            json.put("link", Application.getProperty("iiifserv_baseurl") + "download/file/" + ArchiveBuilder.ZIP_TYPE
+                    + "/" + output);
+        } else {
+            final ArchiveJob submitted = ArchiveJobs.submit(job);
+            json.put("status", ArchiveJob.QUEUED.equals(submitted.state) ? "queued" : "generating");
+            json.put("percentdone", String.valueOf(Math.round(submitted.progress * 100)));
+        }
+        headers.setContentType(MediaType.parseMediaType("application/json"));
+        return new ResponseEntity<String>(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(json), headers,
+                HttpStatus.OK);
+    }
+
     @RequestMapping(value = "/download/file/{type}/{name}", method = {RequestMethod.GET, RequestMethod.HEAD})
-    public ResponseEntity<ByteArrayResource> downloadPdf(@PathVariable String name, @PathVariable String type,
+    public ResponseEntity<?> downloadPdf(@PathVariable String name, @PathVariable String type,
             HttpServletRequest request) throws Exception {
+        if (ItemArchiveBuilder.isItemOutput(name)) {
+            // item archives are only built by the jobs, the name must be the
+            // one built for the access of the requester
+            log.info("downloadPdf(item {})", name);
+            if (!isAllowedItemOutput(name, request)) {
+                return new ResponseEntity<>("Insufficient rights", HttpStatus.FORBIDDEN);
+            }
+            return getStoredArchive(name, type);
+        }
         String[] nameParts = name.replace("FAIR_USE", "").split(":");
         log.info("downloadPdf(name {} , type {})", name, type);
-        Identifier idf = new Identifier("v:" + nameParts[0] + ":" + nameParts[1] + "::" + nameParts[2],
-                Identifier.MANIFEST_ID);
+        String jobId = "v:" + nameParts[0] + ":" + nameParts[1] + "::" + nameParts[2];
+        Identifier idf = new Identifier(jobId, Identifier.MANIFEST_ID);
         log.info("downloadPdf building identifier for id {}", "v:" + name);
         log.info("downloadPdf building from page {} to {}", idf.getBPageNum(), idf.getEPageNum());
         IdentifierInfo inf = new IdentifierInfo(nameParts[0] + ":" + nameParts[1]);
         ResourceAccessValidation accValidation = new ResourceAccessValidation((Access) request.getAttribute("access"),
                 inf);
-        if (Application.isPdfSync()) {
+        HttpHeaders headers = new HttpHeaders();
+        if (Application.isPdfSync() && !ArchiveFileStore.contains(name, type)) {
+            // sync jobs are built here and not queued
+            int maxWidth = 0;
+            if (nameParts.length > 3 && nameParts[3].startsWith("w")) {
+                maxWidth = Integer.parseInt(nameParts[3].substring(1));
+            }
+            final ArchiveJob job = newJob(type, jobId, nameParts[0] + ":" + nameParts[1], name, maxWidth,
+                    accValidation.getAccess(), request);
             if (type.equals(ArchiveBuilder.PDF_TYPE)) {
-                ArchiveBuilder.buildSyncPdf(accValidation.getAccess(), inf, idf, name,
-                        (String) request.getAttribute("origin"));
+                ArchiveBuilder.buildPdf(job);
             }
             if (type.equals(ArchiveBuilder.ZIP_TYPE)) {
-                ArchiveBuilder.buildSyncZip(accValidation.getAccess(), inf, idf, name,
-                        (String) request.getAttribute("origin"));
+                // the zip is written to the response as the images are fetched
+                StreamingResponseBody body = os -> {
+                    try {
+                        ArchiveBuilder.writeZip(job, os);
+                    } catch (IIIFException e) {
+                        throw new IOException(e);
+                    }
+                };
+                headers.setContentType(MediaType.parseMediaType("application/" + type));
+                headers.setContentDispositionFormData("attachment", name.substring(4) + "." + type);
+                return new ResponseEntity<StreamingResponseBody>(body, headers, HttpStatus.OK);
             }
         }
-        byte[] array = null;
-        if (type.equals(ArchiveBuilder.PDF_TYPE)) {
-            array = (byte[]) EHServerCache.IIIF_PDF.get(name);
-            log.info("READ from cache {} name={}", IIIF, name);
-        }
-        if (type.equals(ArchiveBuilder.ZIP_TYPE)) {
-            array = (byte[]) EHServerCache.IIIF_ZIP.get(name);
-            log.info("READ from cache {} name={}", IIIF_ZIP, name);
-        }
+        return getStoredArchive(name, type);
+    }
+
+    static ResponseEntity<Resource> getStoredArchive(String name, String type) {
         HttpHeaders headers = new HttpHeaders();
-        if (array == null) {
+        Resource res = null;
+        if (type.equals(ArchiveBuilder.PDF_TYPE) || type.equals(ArchiveBuilder.ZIP_TYPE)) {
+            File archive = ArchiveFileStore.get(name, type);
+            if (archive != null) {
+                res = new FileSystemResource(archive);
+            }
+            log.info("READ from archive store {} name={}", type, name);
+        }
+        if (res == null) {
             headers.setContentType(MediaType.parseMediaType("text/plain"));
-            array = new String(
+            byte[] array = new String(
                     "The link is wrong or has expired: please retry loading the archive and proceed to its download within 10 mn")
                             .getBytes();
-            return new ResponseEntity<ByteArrayResource>(new ByteArrayResource(array), headers, HttpStatus.NOT_FOUND);
+            return new ResponseEntity<Resource>(new ByteArrayResource(array), headers, HttpStatus.NOT_FOUND);
         }
         headers.setContentType(MediaType.parseMediaType("application/" + type));
-        headers.setContentDispositionFormData("attachment", name.substring(4) + "." + type);
-        ResponseEntity<ByteArrayResource> response = new ResponseEntity<ByteArrayResource>(new ByteArrayResource(array),
-                headers, HttpStatus.OK);
+        headers.setContentDispositionFormData("attachment", getFileName(name) + "." + type);
+        ResponseEntity<Resource> response = new ResponseEntity<Resource>(res, headers, HttpStatus.OK);
         return response;
     }
 
@@ -246,53 +336,214 @@ public class ArchivesController {
             HttpServletRequest request) throws Exception {
         log.info("jobState(id {}, type {})", id, type);
         Identifier idf = new Identifier(id, Identifier.MANIFEST_ID);
-        Integer bPage = idf.getBPageNum();
         IdentifierInfo inf = new IdentifierInfo(idf.getImageGroupId());
-        if (bPage == null) {
-            bPage = 1;
-        }
-        Integer ePage = idf.getEPageNum();
-        if (ePage == null) {
-            ePage = inf.getTotalPages();
-        }
-        String url = Application.getProperty("iiifserv_baseurl") + "download/file/" + type + "/" + idf.getImageGroupId()
-                + ":" + bPage + "-" + ePage + "." + type;
-        Boolean cached = false;
-        Double percentdone = null;
         ResourceAccessValidation accValidation = new ResourceAccessValidation(
                 (Access) request.getAttribute("access"), inf);
         AccessLevel al = accValidation.getAccessLevel(request);
+        final String output = getVolumeOutput(idf, inf, al, getMaxWidth(request));
+        String html = mapper.writerWithDefaultPrettyPrinter()
+                .writeValueAsString(getJobStatus(type, output, ArchiveJobs.get(type, output)));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/json"));
+        ResponseEntity<String> response = new ResponseEntity<String>(html, headers, HttpStatus.OK);
+        return response;
+    }
+
+    @RequestMapping(value = "/download/events/{type}/{id}", method = RequestMethod.GET)
+    public ResponseEntity<?> jobEvents(@PathVariable String id, @PathVariable String type,
+            HttpServletRequest request) throws Exception {
+        log.info("jobEvents(id {}, type {})", id, type);
+        Identifier idf = new Identifier(id, Identifier.MANIFEST_ID);
         final String output;
-        if (al.equals(AccessLevel.FAIR_USE)) {
-            output = idf.getImageGroupId() + "FAIR_USE:" + bPage.intValue() + "-" + ePage.intValue();// +"."+type;
+        final String storeType;
+        if (idf.getSubType() == Identifier.MANIFEST_ID_WORK_IN_ITEM) {
+            Access acc = (Access) request.getAttribute("access");
+            if (acc == null) {
+                acc = new Access();
+            }
+            PdfItemInfo item = PdfItemInfo.getPdfItemInfo(idf.getImageInstanceId());
+            if (!acc.hasResourceAccess(item.getItemAccess())) {
+                return new ResponseEntity<>("Insufficient rights", HttpStatus.FORBIDDEN);
+            }
+            output = ItemArchiveBuilder.getOutput(idf.getImageInstanceId(), !acc.hasResourceAccess(RdfConstants.FAIR_USE),
+                    type, getExcludedVolumes(item, acc, request), getMaxWidth(request));
+            storeType = ArchiveBuilder.ZIP_TYPE;
         } else {
-            output = idf.getImageGroupId() + ":" + bPage.intValue() + "-" + ePage.intValue();// +"."+type;
+            IdentifierInfo inf = new IdentifierInfo(idf.getImageGroupId());
+            ResourceAccessValidation accValidation = new ResourceAccessValidation(
+                    (Access) request.getAttribute("access"), inf);
+            output = getVolumeOutput(idf, inf, accValidation.getAccessLevel(request), getMaxWidth(request));
+            storeType = type;
         }
-        if (type.equals(ArchiveBuilder.PDF_TYPE)) {
-            cached = EHServerCache.IIIF_PDF.containsKey(output);
-            percentdone = ArchiveBuilder.pdfjobs.get(output);
-        }
-        if (type.equals(ArchiveBuilder.ZIP_TYPE)) {
-            cached = EHServerCache.IIIF_ZIP.containsKey(output);
-            percentdone = ArchiveBuilder.zipjobs.get(output);
+        final String key = ArchiveJob.getKey(type, output);
+        final SseEmitter emitter = new SseEmitter(getEventsTimeout());
+        final Consumer<ArchiveJob> listener = job -> {
+            try {
+                emitter.send(SseEmitter.event().name("status").data(getJobStatus(storeType, output, job),
+                        MediaType.APPLICATION_JSON));
+                if (!job.isActive()) {
+                    emitter.complete();
+                }
+            } catch (IOException e) {
+                emitter.completeWithError(e);
+            }
+        };
+        emitter.onCompletion(() -> ArchiveJobEvents.unsubscribe(key, listener));
+        emitter.onTimeout(() -> ArchiveJobEvents.unsubscribe(key, listener));
+        // subscribed before reading the state, so that no change is missed
+        ArchiveJobEvents.subscribe(key, listener);
+        final ArchiveJob current = ArchiveJobs.get(type, output);
+        emitter.send(SseEmitter.event().name("status").data(getJobStatus(storeType, output, current),
+                MediaType.APPLICATION_JSON));
+        if (current == null || !current.isActive()) {
+            emitter.complete();
         }
+        return new ResponseEntity<SseEmitter>(emitter, HttpStatus.OK);
+    }
+
+    // the status sent by jobState and jobEvents
+    static HashMap<String, Object> getJobStatus(String storeType, String output, ArchiveJob job) {
         HashMap<String, Object> json = new HashMap<>();
-        if (cached) {
+        if (ArchiveFileStore.contains(output, storeType)) {
             json.put("status", "done");
-            json.put("link", url);
-        } else if (percentdone != null) {
-            json.put("status", "generating");
-            final long percentint = Math.round(percentdone * 100);
+            json.put("link", Application.getProperty("iiifserv_baseurl") + "download/file/" + storeType + "/" + output);
+        } else if (job != null && job.isActive()) {
+            json.put("status", ArchiveJob.QUEUED.equals(job.state) ? "queued" : "generating");
+            final long percentint = Math.round(job.progress * 100);
             json.put("percentdone", String.valueOf(percentint));
+        } else if (job != null && ArchiveJob.FAILED.equals(job.state)) {
+            json.put("status", "failed");
         } else {
             json.put("status", "notrunning");
         }
-        ObjectMapper mapper = new ObjectMapper();
-        String html = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(json);
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.parseMediaType("application/json"));
-        ResponseEntity<String> response = new ResponseEntity<String>(html, headers, HttpStatus.OK);
-        return response;
+        return json;
+    }
+
+    static long getEventsTimeout() {
+        final String timeout = Application.getProperty("archiveEventsTimeoutMs");
+        return timeout == null ? EVENTS_TIMEOUT_MS : Long.parseLong(timeout);
+    }
+
+    @RequestMapping(value = "/download/job/{type}/{id}", method = RequestMethod.DELETE)
+    public ResponseEntity<String> cancelJob(@PathVariable String id, @PathVariable String type,
+            HttpServletRequest request) throws Exception {
+        log.info("cancelJob(id {}, type {})", id, type);
+        Identifier idf = new Identifier(id, Identifier.MANIFEST_ID);
+        IdentifierInfo inf = new IdentifierInfo(idf.getImageGroupId());
+        ResourceAccessValidation accValidation = new ResourceAccessValidation(
+                (Access) request.getAttribute("access"), inf);
+        AccessLevel al = accValidation.getAccessLevel(request);
+        final String output = getVolumeOutput(idf, inf, al, getMaxWidth(request));
+        ArchiveJob job = ArchiveJobs.get(type, output);
+        if (job == null || !job.isActive()) {
+            return new ResponseEntity<>("No such job", HttpStatus.NOT_FOUND);
+        }
+        // only the client who asked for the archive can cancel it
+        if (!job.owner.equals(getOwner(request))) {
+            return new ResponseEntity<>("Insufficient rights", HttpStatus.FORBIDDEN);
+        }
+        ArchiveJobs.cancel(type, output);
+        return new ResponseEntity<>("cancelled", HttpStatus.OK);
+    }
+
+    // the key of the archive of a page range of a volume in the store
+    static String getVolumeOutput(Identifier idf, IdentifierInfo inf, AccessLevel al, int maxWidth) {
+        Integer bPage = idf.getBPageNum();
+        if (bPage == null) {
+            bPage = 1;
+        }
+        Integer ePage = idf.getEPageNum();
+        if (ePage == null) {
+            ePage = inf.getTotalPages();
+        }
+        final String fairUse = al.equals(AccessLevel.FAIR_USE) ? "FAIR_USE" : "";
+        return idf.getImageGroupId() + fairUse + ":" + bPage.intValue() + "-" + ePage.intValue()
+                + ArchiveJob.getVariantSuffix(maxWidth);
+    }
+
+    // the store key without its "bdr:" prefix
+    // the volumes of an item the requester cannot download, with the same
+    // rules as the volume archives in getPdfLink
+    static List<String> getExcludedVolumes(PdfItemInfo item, Access acc, HttpServletRequest request)
+            throws IIIFException {
+        final List<String> volumeIds = ItemArchiveBuilder.getVolumeIds(item);
+        // one lookup for the info of all the volumes
+        ImageGroupInfoService.Instance.getBatch(volumeIds);
+        final List<String> excluded = new ArrayList<>();
+        for (String volumeId : volumeIds) {
+            final AccessLevel al = new ResourceAccessValidation(acc, new IdentifierInfo(volumeId)).getAccessLevel(request);
+            if (al.equals(AccessLevel.NOACCESS) || al.equals(AccessLevel.MIXED)) {
+                excluded.add(volumeId);
+            }
+        }
+        Collections.sort(excluded);
+        return excluded;
+    }
+
+    // true if the item archive is the one the requester would get from
+    // getItemArchive
+    static boolean isAllowedItemOutput(String name, HttpServletRequest request) throws IIIFException {
+        Access acc = (Access) request.getAttribute("access");
+        if (acc == null) {
+            acc = new Access();
+        }
+        final String itemId = ItemArchiveBuilder.getItemId(name);
+        final PdfItemInfo item = PdfItemInfo.getPdfItemInfo(itemId);
+        if (!acc.hasResourceAccess(item.getItemAccess())) {
+            return false;
+        }
+        int maxWidth = 0;
+        final int w = name.lastIndexOf(":w");
+        if (w > name.indexOf(ItemArchiveBuilder.ITEM_MARK)) {
+            try {
+                maxWidth = Integer.parseInt(name.substring(w + 2));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        final boolean fairUseOnly = !acc.hasResourceAccess(RdfConstants.FAIR_USE);
+        final List<String> excluded = getExcludedVolumes(item, acc, request);
+        return name.equals(ItemArchiveBuilder.getOutput(itemId, fairUseOnly, ArchiveBuilder.PDF_TYPE, excluded, maxWidth))
+                || name.equals(ItemArchiveBuilder.getOutput(itemId, fairUseOnly, ArchiveBuilder.ZIP_TYPE, excluded, maxWidth));
+    }
+
+    static String getFileName(String output) {
+        return output.substring(output.indexOf(':') + 1);
+    }
+
+    static String getOwner(HttpServletRequest request) {
+        return request.getAttribute("origin") + ":" + request.getRemoteAddr();
+    }
+
+    static ArchiveJob newJob(String type, String id, String imageGroupId, String output, int maxWidth, Access acc,
+            HttpServletRequest request) {
+        final ArchiveJob job = new ArchiveJob(type, id, imageGroupId, output, (String) request.getAttribute("origin"),
+                getOwner(request), acc.hasResourceAccess(RdfConstants.FAIR_USE));
+        job.maxWidth = maxWidth;
+        return job;
+    }
+
+    // maximum width of the pages of the archive, from the maxWidth or quality
+    // parameters, 0 for the original images
+    static int getMaxWidth(HttpServletRequest request) throws IIIFException {
+        final String maxWidth = request.getParameter("maxWidth");
+        if (maxWidth != null) {
+            try {
+                final int w = Integer.parseInt(maxWidth);
+                if (w >= MIN_WIDTH) {
+                    return w;
+                }
+            } catch (NumberFormatException e) {
+                // invalid value, error below
+            }
+            throw new IIIFException(400, IIIFException.GENERIC_APP_ERROR_CODE,
+                    "maxWidth must be a number greater than " + MIN_WIDTH);
+        }
+        if (SCREEN_QUALITY.equals(request.getParameter("quality"))) {
+            final String w = Application.getProperty("archiveScreenWidth");
+            return w == null ? SCREEN_WIDTH : Integer.parseInt(w);
+        }
+        return 0;
     }
 
     public static Map<String,String> templatesCache = new HashMap<>();
@@ -320,6 +571,12 @@ public class ArchivesController {
             throws ClientProtocolException, IOException, IIIFException, ResourceNotFoundException {
         String links = "";
         List<String> vlist = item.getItemVolumes();
+        List<String> volumeIds = new ArrayList<>();
+        for (String s : vlist) {
+            volumeIds.add("bdr:" + getShortName(s));
+        }
+        // one lookup for the info of all the volumes
+        ImageGroupInfoService.Instance.getBatch(volumeIds);
         for (int i = 0; i < vlist.size(); i++) {
             String s = vlist.get(i);
             String shortName = getShortName(s);
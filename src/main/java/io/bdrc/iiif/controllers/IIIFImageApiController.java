@@ -1,5 +1,7 @@
 package io.bdrc.iiif.controllers;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -7,6 +9,8 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.time.Instant;
 import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -29,14 +33,13 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.servlet.ModelAndView;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
-import de.digitalcollections.iiif.model.PropertyValue;
 import de.digitalcollections.model.api.identifiable.resource.exceptions.ResourceNotFoundException;
 import io.bdrc.auth.Access;
 import io.bdrc.auth.AuthProps;
@@ -45,12 +48,14 @@ import io.bdrc.auth.rdf.RdfAuthModel;
 import io.bdrc.iiif.auth.AuthServiceInfo;
 import io.bdrc.iiif.auth.ResourceAccessValidation;
 import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.core.CacheKeyIndex;
 import io.bdrc.iiif.core.EHServerCache;
 import io.bdrc.iiif.exceptions.IIIFException;
 import io.bdrc.iiif.exceptions.InvalidParametersException;
 import io.bdrc.iiif.exceptions.UnsupportedFormatException;
+import io.bdrc.iiif.image.service.CacheWarmer;
 import io.bdrc.iiif.image.service.ImageProviderService;
-import io.bdrc.iiif.image.service.ImageService;
+import io.bdrc.iiif.image.service.InfoJsonCache;
 import io.bdrc.iiif.image.service.ReadImageProcess;
 import io.bdrc.iiif.image.service.WriteImageProcess;
 import io.bdrc.iiif.metrics.ImageMetrics;
@@ -63,10 +68,8 @@ import io.bdrc.iiif.model.ImageApiSelector;
 import io.bdrc.iiif.model.ImageReader_ICC;
 import io.bdrc.iiif.model.RegionRequest;
 import io.bdrc.iiif.model.SizeRequest;
-import io.bdrc.iiif.model.TileInfo;
 import io.bdrc.iiif.resolver.AccessType;
 import io.bdrc.iiif.resolver.IdentifierInfo;
-import io.bdrc.iiif.resolver.ImageInfo;
 
 @RestController
 @Component
@@ -178,9 +181,26 @@ public class IIIFImageApiController {
 
         long deb1 = System.currentTimeMillis();
 
+        // the dimensions listed in dimensions.json let us resolve the request
+        // before fetching anything
+        Dimension nativeSize = null;
+        if (idi != null) {
+            final int imgIndex = idi.getImageIndex();
+            if (imgIndex >= 0) {
+                nativeSize = new Dimension(idi.index.getWidth(imgIndex), idi.index.getHeight(imgIndex));
+                try {
+                    final String canonicalForm = selector.getCanonicalForm(idi.getCanonical(), nativeSize, profile, Quality.DEFAULT);
+                    headers.add("Link", String.format("<%s>;rel=\"canonical\"", Application.getProperty("iiifserv_baseurl") + canonicalForm));
+                } catch (IIIFException e) {
+                    // invalid requests are reported by the image processing below
+                    log.debug("couldn't compute canonical form of {}: {}", selector, e.getMessage());
+                }
+            }
+        }
+
         // Now a shortcut:
 
-        if (!requestDiffersFromOriginal(identifier, selector)) {
+        if (!requestDiffersFromOriginal(identifier, selector, nativeSize)) {
             // let's get our hands dirty
             final String s3key;
             final ImageProviderService service;
@@ -210,10 +230,6 @@ public class IIIFImageApiController {
             // null,false);
             Application.logPerf("end reading from image service after {} ms for {} with reader {}",
                     (System.currentTimeMillis() - deb1), identifier, imgReader);
-            // final String canonicalForm = idi.getCanonical();
-            // TODO: make it actually canonical...
-            // headers.add("Link", String.format("<%s>;rel=\"canonical\"",
-            // Application.getProperty("iiifserv_baseurl") + canonicalForm));
             deb1 = System.currentTimeMillis();
             Application.logPerf("processing image output stream for {}", identifier);
             os = new ByteArrayOutputStream();
@@ -224,7 +240,7 @@ public class IIIFImageApiController {
             Application.logPerf("ended processing image after {} ms for {}", (System.currentTimeMillis() - deb1),
                     identifier);
             Application.logPerf("Total request time {} ms ", (System.currentTimeMillis() - deb), identifier);
-            imgReader.getReader().dispose();
+            imgReader.dispose();
             ImageMetrics.imageCount(ImageMetrics.IMG_CALLS_COMMON, (String) request.getAttribute("origin"));
         } catch (Exception e) {
             log.error("Resource was not found for identifier " + identifier + " Message: " + e.getMessage()
@@ -238,7 +254,7 @@ public class IIIFImageApiController {
                 Application.logPerf("ended processing image after {} ms for {}", (System.currentTimeMillis() - deb1),
                         identifier);
                 Application.logPerf("Total request time {} ms ", (System.currentTimeMillis() - deb), identifier);
-                imgReader.getReader().dispose();
+                imgReader.dispose();
                 ImageMetrics.imageCount(ImageMetrics.IMG_CALLS_COMMON, (String) request.getAttribute("origin"));
             } catch (Exception ex) {
                 log.error("Somethng WENT WRONG ");
@@ -251,20 +267,16 @@ public class IIIFImageApiController {
     }
 
     public static boolean pngOutput(final String filename) {
-        final String ext = filename.substring(filename.length() - 4).toLowerCase();
-        return (ext.equals(".tif") || ext.equals("tiff"));
+        return InfoJsonCache.pngOutput(filename);
     }
 
-    public static final PropertyValue pngHint = new PropertyValue("png", "jpg");
-
     @RequestMapping(value = "{identifier}/info.json", method = {RequestMethod.GET, RequestMethod.HEAD})
-    public ResponseEntity<String> getInfo(@PathVariable String identifier, HttpServletRequest req,
+    public ResponseEntity<byte[]> getInfo(@PathVariable String identifier, HttpServletRequest req,
             HttpServletResponse res, WebRequest webRequest) throws ClientProtocolException, IOException, IIIFException,
             UnsupportedOperationException, UnsupportedFormatException, InterruptedException, ExecutionException {
         log.info("{identifier}/info.json endpoint getInfo() for id {}", identifier);
         long deb = System.currentTimeMillis();
         long maxAge = Long.parseLong(Application.getProperty("maxage"));
-        ObjectMapper objectMapper = new ObjectMapper();
         String img = "";
         boolean staticImg = false;
         if (identifier.split("::").length > 1) {
@@ -274,31 +286,26 @@ public class IIIFImageApiController {
         log.info("Entering endpoint getInfo for {}", identifier);
         boolean unAuthorized = false;
         IdentifierInfo idi = new IdentifierInfo(identifier);
-        ImageService info = new ImageService(Application.getProperty("iiifserv_baseurl") + identifier);
-        ImageInfo imgInf = idi.getImageInfo(idi.imageName);
-        if (imgInf == null) {
-            log.error("couldn't find {} in image list");
-            return new ResponseEntity<>("Resource was not found (image not listed) for identifier " + identifier,
+        final int imgIndex = idi.getImageIndex();
+        if (imgIndex < 0) {
+            log.error("couldn't find {} in image list", identifier);
+            return new ResponseEntity<>(("Resource was not found (image not listed) for identifier " + identifier).getBytes(),
                     HttpStatus.NOT_FOUND);
         }
-        updateInfo(imgInf, info);
         if (!staticImg) {
             ResourceAccessValidation accValidation = null;
             accValidation = new ResourceAccessValidation((Access) req.getAttribute("access"), idi, img);
             unAuthorized = !accValidation.isAccessible(req);
         }
-        if (unAuthorized && serviceInfo.authEnabled() && serviceInfo.hasValidProperties()) {
-            info.addService(serviceInfo);
-        }
-        if (pngOutput(identifier)) {
-            info.setPreferredFormats(pngHint);
-        }
+        final boolean withAuthService = unAuthorized && serviceInfo.authEnabled() && serviceInfo.hasValidProperties();
+        final InfoJsonCache.Entry info = InfoJsonCache.get(identifier, idi.index.getWidth(imgIndex), idi.index.getHeight(imgIndex),
+                idi.index.getSize(imgIndex), withAuthService ? serviceInfo : null);
         HttpHeaders headers = new HttpHeaders();
         try {
             headers.setDate("Last-Modified", getImageModificationDate(identifier).toEpochMilli());
         } catch (IIIFException e) {
             log.error("Resource was not found for identifier " + identifier + " Message: " + e.getMessage());
-            return new ResponseEntity<>("Resource was not found for identifier " + identifier,
+            return new ResponseEntity<>(("Resource was not found for identifier " + identifier).getBytes(),
                     HttpStatus.NOT_FOUND);
         }
         if ("application/ld+json".equals(req.getHeader("Accept"))) {
@@ -308,8 +315,8 @@ public class IIIFImageApiController {
             headers.add("Link", "<http://iiif.io/api/image/2/context.json>; "
                     + "rel=\"http://www.w3.org/ns/json-ld#context\"; " + "type=\"application/ld+json\"");
         }
-        headers.add("Link",
-                String.format("<%s>;rel=\"profile\"", info.getProfiles().get(0).getIdentifier().toString()));
+        headers.add("Link", String.format("<%s>;rel=\"profile\"", ImageApiProfile.LEVEL_ONE.getIdentifier().toString()));
+        headers.setETag(info.etag);
         // We set the header ourselves, since using @CrossOrigin doesn't
         // expose "*", but
         // always sets the requesting domain
@@ -317,12 +324,11 @@ public class IIIFImageApiController {
         Application.logPerf("getInfo ready to return after {} ms for {}", (System.currentTimeMillis() - deb),
                 identifier);
         if (unAuthorized) {
-            if (serviceInfo.hasValidProperties() && serviceInfo.authEnabled()) {
-                return new ResponseEntity<>(objectMapper.writeValueAsString(info), headers,
-                        HttpStatus.UNAUTHORIZED);
+            if (withAuthService) {
+                return new ResponseEntity<>(info.body, headers, HttpStatus.UNAUTHORIZED);
             } else {
                 headers.setCacheControl(CacheControl.noCache());
-                return new ResponseEntity<>(objectMapper.writeValueAsString(info), headers, HttpStatus.FORBIDDEN);
+                return new ResponseEntity<>(info.body, headers, HttpStatus.FORBIDDEN);
             }
         } else {
             if (idi.igi.access.equals(AccessType.OPEN)) {
@@ -330,8 +336,27 @@ public class IIIFImageApiController {
             } else {
                 headers.setCacheControl(CacheControl.maxAge(maxAge, TimeUnit.MILLISECONDS).cachePrivate());
             }
-            return new ResponseEntity<>(objectMapper.writeValueAsString(info), headers, HttpStatus.OK);
+            if (etagMatches(req.getHeader("If-None-Match"), info.etag)) {
+                return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+            }
+            return new ResponseEntity<>(info.body, headers, HttpStatus.OK);
+        }
+    }
+
+    static boolean etagMatches(final String ifNoneMatch, final String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
         }
+        return false;
     }
 
     @RequestMapping(value = "{identifier}", method = {RequestMethod.GET, RequestMethod.HEAD})
@@ -359,6 +384,14 @@ public class IIIFImageApiController {
         return resp;
     }
 
+    // 503 while the metadata caches are warming up after a restart, for the
+    // load balancer
+    @RequestMapping(value = "cache/warmup", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    ResponseEntity<Map<String, Object>> getWarmUpStatus() {
+        return new ResponseEntity<>(CacheWarmer.getStatus(),
+                CacheWarmer.isReady() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
     @RequestMapping(value = "cache/view", method = RequestMethod.GET, produces = MediaType.TEXT_HTML_VALUE)
     public ModelAndView getCacheInfo() {
         log.info("Call to getCacheInfo()");
@@ -376,6 +409,47 @@ public class IIIFImageApiController {
         return ResponseEntity.ok("Updated auth Model was read into IIIF serv");
     }
 
+    /**
+     * Invalidates the cached data of image groups (volume), of all the image
+     * groups of an instance or image instance (instance), or of all the keys
+     * starting with a prefix (prefix). With rewarm=true the info and image list
+     * of the image groups are fetched again in the background.
+     */
+    @RequestMapping(value = "/callbacks/invalidate", method = RequestMethod.POST, produces = MediaType.TEXT_PLAIN_VALUE)
+    public ResponseEntity<String> invalidate(@RequestParam(value = "volume", required = false) List<String> volumes,
+            @RequestParam(value = "instance", required = false) List<String> instances,
+            @RequestParam(value = "prefix", required = false) List<String> prefixes,
+            @RequestParam(value = "rewarm", defaultValue = "false") boolean rewarm) {
+        log.info("invalidating volumes {}, instances {}, prefixes {}", volumes, instances, prefixes);
+        if (volumes == null && instances == null && prefixes == null) {
+            return ResponseEntity.badRequest().body("one of volume, instance or prefix is required");
+        }
+        if (prefixes != null) {
+            for (String prefix : prefixes) {
+                if (!CacheKeyIndex.isValidPrefix(prefix)) {
+                    return ResponseEntity.badRequest().body("invalid prefix \"" + prefix + "\", it must start with a namespace such as bdr:");
+                }
+            }
+        }
+        int removed = 0;
+        if (volumes != null) {
+            for (String volumeId : volumes) {
+                removed += CacheKeyIndex.invalidateVolume(volumeId, rewarm);
+            }
+        }
+        if (instances != null) {
+            for (String instanceId : instances) {
+                removed += CacheKeyIndex.invalidateInstance(instanceId, rewarm);
+            }
+        }
+        if (prefixes != null) {
+            for (String prefix : prefixes) {
+                removed += CacheKeyIndex.invalidatePrefix(prefix);
+            }
+        }
+        return ResponseEntity.ok(removed + " cache entries invalidated");
+    }
+
     public int computeExpires(TokenValidation tkVal) {
         long expires = tkVal.getVerifiedJwt().getExpiresAt().toInstant().getEpochSecond();
         long current = Calendar.getInstance().getTime().toInstant().getEpochSecond();
@@ -415,28 +489,38 @@ public class IIIFImageApiController {
     }
 
     // here we return a boolean telling us if the requested image is different
-    // from
-    // the original image
-    // on S3
+    // from the original image on S3
     public static boolean requestDiffersFromOriginal(final String identifier, final ImageApiSelector selector) {
+        return requestDiffersFromOriginal(identifier, selector, null);
+    }
+
+    // when the native size of the image is known, requests that resolve to the
+    // full image (0,0,w,h regions, w, sizes, pct:100, etc.) are identity
+    // transforms too
+    public static boolean requestDiffersFromOriginal(final String identifier, final ImageApiSelector selector,
+            final Dimension nativeSize) {
         if (formatDiffer(identifier, selector))
             return true;
-        if (selector.getQuality() != Quality.DEFAULT) // TODO: this could be
-                                                      // improved but we can
-                                                      // keep that for later
+        if (selector.getQuality() != Quality.DEFAULT)
             return true;
-        if (selector.getRotation().getRotation() != 0.)
+        if (selector.getRotation().getRotation() != 0. || selector.getRotation().isMirror())
             return true;
-        if (!selector.getRegion().equals(new RegionRequest())) // TODO: same
-                                                               // here, could be
-                                                               // improved by
-                                                               // reading the
-                                                               // dimensions of
-                                                               // the image
-            return true;
-        if (!selector.getSize().equals(new SizeRequest()) && !selector.getSize().equals(new SizeRequest(true)))
+        if (nativeSize == null) {
+            if (!selector.getRegion().equals(new RegionRequest()))
+                return true;
+            if (!selector.getSize().equals(new SizeRequest()) && !selector.getSize().equals(new SizeRequest(true)))
+                return true;
+            return false;
+        }
+        try {
+            final Rectangle region = selector.getRegion().resolve(nativeSize);
+            if (region.x != 0 || region.y != 0 || region.width != nativeSize.width || region.height != nativeSize.height)
+                return true;
+            return !nativeSize.equals(selector.getSize().resolve(region, ImageApiProfile.LEVEL_TWO));
+        } catch (IIIFException e) {
+            // let the image processing report the error
             return true;
-        return false;
+        }
     }
 
     public static boolean formatDiffer(final String identifier, final ImageApiSelector selector) {
@@ -459,28 +543,4 @@ public class IIIFImageApiController {
             throw new IIIFException("Could not get Image modification date from resource for identifier " + identifier);
         }
     }
-
-    private ImageService updateInfo(ImageInfo imgInf, ImageService info) {
-        info.setWidth(imgInf.getWidth());
-        info.setHeight(imgInf.getHeight());
-        ImageApiProfile profile = new ImageApiProfile();
-        profile.addFeature(ImageApiProfile.Feature.BASE_URI_REDIRECT, ImageApiProfile.Feature.CORS,
-                ImageApiProfile.Feature.JSONLD_MEDIA_TYPE, ImageApiProfile.Feature.PROFILE_LINK_HEADER,
-                ImageApiProfile.Feature.CANONICAL_LINK_HEADER, ImageApiProfile.Feature.REGION_BY_PCT,
-                ImageApiProfile.Feature.REGION_BY_PX, ImageApiProfile.Feature.REGION_SQUARE,
-                ImageApiProfile.Feature.ROTATION_BY_90S, ImageApiProfile.Feature.MIRRORING,
-                ImageApiProfile.Feature.SIZE_BY_CONFINED_WH, ImageApiProfile.Feature.SIZE_BY_DISTORTED_WH,
-                ImageApiProfile.Feature.SIZE_BY_H, ImageApiProfile.Feature.SIZE_BY_PCT,
-                ImageApiProfile.Feature.SIZE_BY_W, ImageApiProfile.Feature.SIZE_BY_WH);
-        info.addProfile(ImageApiProfile.LEVEL_ONE, profile);
-        TileInfo tile = new TileInfo(info.getWidth());
-        tile.setHeight(info.getHeight());
-        if (imgInf.size == null || imgInf.size < 1000000) {
-            tile.addScaleFactor(1);
-        } else {
-            tile.addScaleFactor(1, 2, 4);
-        }
-        info.addTile(tile);
-        return info;
-    }
 }
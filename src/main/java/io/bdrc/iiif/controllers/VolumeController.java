@@ -0,0 +1,279 @@
+package io.bdrc.iiif.controllers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import io.bdrc.auth.Access;
+import io.bdrc.auth.Access.AccessLevel;
+import io.bdrc.iiif.auth.AuthServiceInfo;
+import io.bdrc.iiif.auth.ResourceAccessValidation;
+import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.image.service.InfoJsonCache;
+import io.bdrc.iiif.image.service.SpriteService;
+import io.bdrc.iiif.image.service.ThumbnailService;
+import io.bdrc.iiif.metrics.ImageMetrics;
+import io.bdrc.iiif.model.ImageApiProfile.Format;
+import io.bdrc.iiif.model.ImageApiProfile.Quality;
+import io.bdrc.iiif.model.ImageApiSelector;
+import io.bdrc.iiif.resolver.AccessType;
+import io.bdrc.iiif.resolver.IdentifierInfo;
+import io.bdrc.iiif.resolver.ImageInfo;
+
+/**
+ * Endpoints working on a whole image group at once, resolving the image group
+ * and the access of the user only once for all its images.
+ */
+@RestController
+@Component
+@RequestMapping("/")
+public class VolumeController {
+
+    private static final Logger log = LoggerFactory.getLogger(VolumeController.class);
+
+    private static final int MAX_THUMBNAILS = 200;
+    private static final String CRLF = "\r\n";
+    public static final long DEFAULT_THUMBNAILS_TIMEOUT_S = 30;
+
+    @Autowired
+    private AuthServiceInfo serviceInfo;
+
+    @RequestMapping(value = "{identifier}/infos.json", method = { RequestMethod.GET, RequestMethod.HEAD })
+    public ResponseEntity<byte[]> getVolumeInfos(@PathVariable String identifier,
+            @RequestParam(value = "b", required = false) Integer b, @RequestParam(value = "e", required = false) Integer e,
+            HttpServletRequest req) throws IIIFException, IOException {
+        log.info("{identifier}/infos.json endpoint getVolumeInfos() for id {}, b={}, e={}", identifier, b, e);
+        long deb = System.currentTimeMillis();
+        long maxAge = Long.parseLong(Application.getProperty("maxage"));
+        final IdentifierInfo idi = new IdentifierInfo(identifier);
+        final List<ImageInfo> ili = idi.ili;
+        final int begin = b == null ? 1 : b;
+        final int end = e == null ? ili.size() : Math.min(e, ili.size());
+        if (begin < 1 || begin > end) {
+            return new ResponseEntity<>(("Invalid image range " + b + "-" + e + " for " + identifier).getBytes(),
+                    HttpStatus.BAD_REQUEST);
+        }
+        final ResourceAccessValidation accValidation = new ResourceAccessValidation((Access) req.getAttribute("access"), idi);
+        final AccessLevel al = accValidation.getAccessLevel(req);
+        final boolean authService = serviceInfo.authEnabled() && serviceInfo.hasValidProperties();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final StringBuilder etags = new StringBuilder();
+        boolean allAccessible = true;
+        body.write('[');
+        for (int i = begin - 1; i < end; i++) {
+            final String filename = idi.index.getFilename(i);
+            final boolean accessible = accValidation.isAccessible(al, filename);
+            allAccessible = allAccessible && accessible;
+            final InfoJsonCache.Entry info = InfoJsonCache.get(idi.volumeId + "::" + filename, idi.index.getWidth(i),
+                    idi.index.getHeight(i), idi.index.getSize(i), !accessible && authService ? serviceInfo : null);
+            if (i != begin - 1) {
+                body.write(',');
+            }
+            body.write(info.body);
+            etags.append(info.etag);
+        }
+        body.write(']');
+        final String etag = "\"" + DigestUtils.md5DigestAsHex(etags.toString().getBytes()) + "\"";
+        HttpHeaders headers = new HttpHeaders();
+        if ("application/ld+json".equals(req.getHeader("Accept"))) {
+            headers.set("Content-Type", req.getHeader("Accept"));
+        } else {
+            headers.set("Content-Type", "application/json");
+        }
+        headers.setETag(etag);
+        if (!allAccessible) {
+            headers.setCacheControl(CacheControl.noCache());
+        } else if (idi.igi.access.equals(AccessType.OPEN)) {
+            headers.setCacheControl(CacheControl.maxAge(maxAge, TimeUnit.MILLISECONDS).cachePublic());
+        } else {
+            headers.setCacheControl(CacheControl.maxAge(maxAge, TimeUnit.MILLISECONDS).cachePrivate());
+        }
+        Application.logPerf("getVolumeInfos ready to return after {} ms for {}", (System.currentTimeMillis() - deb), identifier);
+        if (IIIFImageApiController.etagMatches(req.getHeader("If-None-Match"), etag)) {
+            return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+        }
+        return new ResponseEntity<>(body.toByteArray(), headers, HttpStatus.OK);
+    }
+
+    static long getThumbnailsTimeoutMs() {
+        final String val = Application.getProperty("thumbnailsTimeoutS");
+        return (val == null ? DEFAULT_THUMBNAILS_TIMEOUT_S : Long.parseLong(val)) * 1000;
+    }
+
+    @RequestMapping(value = "{identifier}/thumbnails", method = RequestMethod.GET)
+    public ResponseEntity<byte[]> getThumbnails(@PathVariable String identifier,
+            @RequestParam(value = "size", defaultValue = "!150,150") String size,
+            @RequestParam(value = "format", defaultValue = "jpg") String format,
+            @RequestParam(value = "images", required = false) String images,
+            @RequestParam(value = "b", required = false) Integer b, @RequestParam(value = "e", required = false) Integer e,
+            HttpServletRequest req) throws IIIFException, IOException {
+        log.info("{identifier}/thumbnails endpoint getThumbnails() for id {}, size={}, images={}, b={}, e={}", identifier, size, images, b,
+                e);
+        long deb = System.currentTimeMillis();
+        long maxAge = Long.parseLong(Application.getProperty("maxage"));
+        final IdentifierInfo idi = new IdentifierInfo(identifier);
+        final List<String> filenames = new ArrayList<>();
+        if (images != null) {
+            filenames.addAll(Arrays.asList(images.split(",")));
+        } else {
+            final int begin = b == null ? 1 : b;
+            final int end = Math.min(e == null ? begin + MAX_THUMBNAILS - 1 : e, idi.ili.size());
+            for (int i = begin - 1; i >= 0 && i < end; i++) {
+                filenames.add(idi.index.getFilename(i));
+            }
+        }
+        if (filenames.isEmpty() || filenames.size() > MAX_THUMBNAILS) {
+            return new ResponseEntity<>(("A batch must contain between 1 and " + MAX_THUMBNAILS + " images").getBytes(),
+                    HttpStatus.BAD_REQUEST);
+        }
+        final ImageApiSelector[] selectors = new ImageApiSelector[filenames.size()];
+        try {
+            for (int i = 0; i < selectors.length; i++) {
+                selectors[i] = new ImageApiSelector();
+                selectors[i].setIdentifier(idi.volumeId + "::" + filenames.get(i));
+                selectors[i].setRegion("full");
+                selectors[i].setSize(size);
+                selectors[i].setRotation("0");
+                selectors[i].setQuality(Quality.DEFAULT);
+                selectors[i].setFormat(Format.valueOf(format.toUpperCase()));
+            }
+        } catch (IIIFException | IllegalArgumentException ex) {
+            return new ResponseEntity<>(("Invalid size or format: " + ex.getMessage()).getBytes(), HttpStatus.BAD_REQUEST);
+        }
+        final ResourceAccessValidation accValidation = new ResourceAccessValidation((Access) req.getAttribute("access"), idi);
+        final AccessLevel al = accValidation.getAccessLevel(req);
+        final List<Future<byte[]>> renders = new ArrayList<>();
+        boolean allAccessible = true;
+        for (int i = 0; i < selectors.length; i++) {
+            final String filename = filenames.get(i);
+            if (idi.indexOf(filename) < 0 || !accValidation.isAccessible(al, filename)) {
+                // the 403 parts depend on the client, the batch can't be shared
+                allAccessible = false;
+                renders.add(null);
+            } else {
+                renders.add(ThumbnailService.submit(idi, filename, selectors[i]));
+            }
+        }
+        final String boundary = "iiif-" + UUID.randomUUID().toString();
+        final String base = Application.getProperty("iiifserv_baseurl");
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        // the whole batch must be rendered before the deadline
+        final long deadline = System.currentTimeMillis() + getThumbnailsTimeoutMs();
+        for (int i = 0; i < selectors.length; i++) {
+            final Future<byte[]> render = renders.get(i);
+            final String filename = filenames.get(i);
+            byte[] bytes = null;
+            int status = HttpStatus.OK.value();
+            if (render == null) {
+                status = idi.indexOf(filename) < 0 ? HttpStatus.NOT_FOUND.value() : HttpStatus.FORBIDDEN.value();
+            } else {
+                try {
+                    bytes = render.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    ImageMetrics.imageCount(ImageMetrics.IMG_CALLS_COMMON, (String) req.getAttribute("origin"));
+                } catch (TimeoutException ex) {
+                    log.error("timeout rendering thumbnail of {}", filename);
+                    render.cancel(true);
+                    status = HttpStatus.SERVICE_UNAVAILABLE.value();
+                    allAccessible = false;
+                } catch (InterruptedException | ExecutionException ex) {
+                    log.error("could not render thumbnail of {}", filename, ex);
+                    status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+                    allAccessible = false;
+                }
+            }
+            final StringBuilder part = new StringBuilder();
+            part.append("--").append(boundary).append(CRLF);
+            if (bytes != null) {
+                part.append("Content-Type: ").append(selectors[i].getFormat().getMimeType().getTypeName()).append(CRLF);
+            } else {
+                bytes = new byte[0];
+                part.append("Content-Type: text/plain").append(CRLF);
+            }
+            part.append("Content-Location: ").append(base).append(selectors[i].toString()).append(CRLF);
+            part.append("X-IIIF-Status: ").append(status).append(CRLF);
+            part.append("Content-Length: ").append(bytes.length).append(CRLF).append(CRLF);
+            body.write(part.toString().getBytes(StandardCharsets.UTF_8));
+            body.write(bytes);
+            body.write(CRLF.getBytes(StandardCharsets.US_ASCII));
+        }
+        body.write(("--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII));
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Content-Type", "multipart/mixed; boundary=" + boundary);
+        if (!allAccessible) {
+            headers.setCacheControl(CacheControl.noCache());
+        } else if (idi.igi.access.equals(AccessType.OPEN)) {
+            headers.setCacheControl(CacheControl.maxAge(maxAge, TimeUnit.MILLISECONDS).cachePublic());
+        } else {
+            headers.setCacheControl(CacheControl.maxAge(maxAge, TimeUnit.MILLISECONDS).cachePrivate());
+        }
+        Application.logPerf("getThumbnails rendered {} images in {} ms for {}", selectors.length, (System.currentTimeMillis() - deb),
+                identifier);
+        return new ResponseEntity<>(body.toByteArray(), headers, HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "{identifier}/sprite/{chunk}.{ext}", method = { RequestMethod.GET, RequestMethod.HEAD })
+    public ResponseEntity<byte[]> getSprite(@PathVariable String identifier, @PathVariable int chunk, @PathVariable String ext,
+            HttpServletRequest req) throws IIIFException {
+        log.info("{identifier}/sprite endpoint getSprite() for id {}, chunk={}, ext={}", identifier, chunk, ext);
+        long maxAge = Long.parseLong(Application.getProperty("maxage"));
+        if (!ext.equals("jpg") && !ext.equals("json")) {
+            return new ResponseEntity<>(("Unknown sprite format " + ext).getBytes(), HttpStatus.NOT_FOUND);
+        }
+        final IdentifierInfo idi = new IdentifierInfo(identifier);
+        if (chunk < 0 || chunk >= SpriteService.getNbChunks(idi)) {
+            return new ResponseEntity<>(("No chunk " + chunk + " in " + identifier).getBytes(), HttpStatus.NOT_FOUND);
+        }
+        // sprites are shared by all users, so they are only built for open image
+        // groups
+        final ResourceAccessValidation accValidation = new ResourceAccessValidation((Access) req.getAttribute("access"), idi);
+        if (!idi.igi.access.equals(AccessType.OPEN) || !accValidation.getAccessLevel(req).equals(AccessLevel.OPEN)) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.setCacheControl(CacheControl.noCache());
+            return new ResponseEntity<>("Sprites are only available for open image groups".getBytes(), headers, HttpStatus.FORBIDDEN);
+        }
+        final String key = SpriteService.getKey(idi, chunk);
+        final byte[] res = ext.equals("jpg") ? SpriteService.getSprite(key) : SpriteService.getMap(key);
+        HttpHeaders headers = new HttpHeaders();
+        if (res == null || SpriteService.getMap(key) == null) {
+            SpriteService.ensureSprite(idi, chunk);
+            headers.setCacheControl(CacheControl.noCache());
+            headers.set("Retry-After", "5");
+            return new ResponseEntity<>(("Sprite " + key + " is being generated").getBytes(), headers, HttpStatus.ACCEPTED);
+        }
+        headers.set("Content-Type", ext.equals("jpg") ? "image/jpeg" : "application/json");
+        if (SpriteService.isComplete(key)) {
+            headers.setCacheControl(CacheControl.maxAge(maxAge, TimeUnit.MILLISECONDS).cachePublic());
+        } else {
+            // the missing images are rendered again when it expires
+            headers.setCacheControl(CacheControl.maxAge(SpriteService.getRetryMs(), TimeUnit.MILLISECONDS).cachePublic());
+        }
+        return new ResponseEntity<>(res, headers, HttpStatus.OK);
+    }
+
+}
@@ -24,6 +24,9 @@ import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 
 import io.bdrc.auth.AuthProps;
 import io.bdrc.auth.rdf.RdfAuthModel;
+import io.bdrc.iiif.archives.ArchiveFileStore;
+import io.bdrc.iiif.archives.ArchiveJobs;
+import io.bdrc.iiif.image.service.CacheWarmer;
 import io.bdrc.iiif.metrics.ImageMetrics;
 import io.bdrc.iiif.metrics.MetricsTask;
 
@@ -78,6 +81,9 @@ public class Application extends SpringBootServletInitializer {
         log.info("{}", props);
         // every minute ?
         EHServerCache.init();
+        ArchiveFileStore.init();
+        ArchiveJobs.init();
+        CacheWarmer.init();
         new Timer(true).schedule(new MetricsTask(), 0, 60000);
         SpringApplication.run(Application.class, args);
         logPerf("Application main", "Test PERF Log ");
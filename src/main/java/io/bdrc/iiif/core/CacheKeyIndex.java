@@ -0,0 +1,295 @@
+package io.bdrc.iiif.core;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import org.ehcache.event.CacheEvent;
+import org.ehcache.event.CacheEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.bdrc.iiif.archives.ArchiveFileStore;
+import io.bdrc.iiif.archives.ItemArchiveBuilder;
+import io.bdrc.iiif.archives.PdfItemInfo;
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.image.service.ImageGroupInfoService;
+import io.bdrc.iiif.image.service.ImageInfoListService;
+import io.bdrc.iiif.image.service.ImageProviderService;
+import io.bdrc.iiif.image.service.InfoJsonCache;
+import io.bdrc.iiif.image.service.RasterCache;
+import io.bdrc.iiif.image.service.SpriteService;
+import io.bdrc.iiif.resolver.IdentifierInfo;
+import io.bdrc.iiif.resolver.ImageGroupInfo;
+import io.bdrc.iiif.resolver.ImageInfo;
+
+/**
+ * Secondary index of the cache keys by image group, so that the entries of a
+ * corrected or re-scanned image group can be removed from all the caches
+ * without clearing them. Each key is attached to the group it was computed
+ * from: the volume id, or the S3 directory of the images for the image and
+ * image list caches. The index is kept up to date by cache event listeners,
+ * which also record the S3 directory and the instances of each volume when
+ * its ImageGroupInfo is cached.
+ *
+ * The index only knows the keys cached since the start of the server, the
+ * images of the persistent cache are found from the image list instead.
+ */
+public class CacheKeyIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheKeyIndex.class);
+    private static final Pattern VALID_PREFIX = Pattern.compile("[A-Za-z][A-Za-z0-9_-]*:\\S+");
+
+    static final char SEP = '\t';
+
+    // group -> cache name + SEP + key
+    private static final Map<String, Set<String>> groups = new ConcurrentHashMap<>();
+    // volume id -> S3 directory of its images
+    private static final Map<String, String> volumeDirs = new ConcurrentHashMap<>();
+    // instance or image instance id -> volume ids
+    private static final Map<String, Set<String>> instanceVolumes = new ConcurrentHashMap<>();
+
+    private static final ExecutorService rewarmService = Executors.newSingleThreadExecutor();
+
+    public static class Listener implements CacheEventListener<Object, Object> {
+
+        final String cacheName;
+
+        public Listener(String cacheName) {
+            this.cacheName = cacheName;
+        }
+
+        @Override
+        public void onEvent(CacheEvent<? extends Object, ? extends Object> event) {
+            switch (event.getType()) {
+            case CREATED:
+            case UPDATED:
+                add(cacheName, event.getKey().toString(), event.getNewValue());
+                break;
+            default:
+                remove(cacheName, event.getKey().toString());
+            }
+        }
+    }
+
+    static String getGroup(final String cacheName, final String key) {
+        switch (cacheName) {
+        case "iiif_img":
+        case "imageListInfo":
+            // prefix:Works/xx/W/images/W-I/filename
+            final int slash = key.lastIndexOf('/');
+            return slash < 0 ? null : key.substring(key.indexOf(':') + 1, slash + 1);
+        case "imageGroupInfo":
+            // vi:bdr:I
+            return key.substring(key.indexOf(':') + 1);
+        case "iiif_sprite":
+            // volume:chunk:suffix
+            final int last = key.lastIndexOf(':');
+            final int chunk = last <= 0 ? -1 : key.lastIndexOf(':', last - 1);
+            return chunk < 0 ? null : key.substring(0, chunk);
+        case "infoJson":
+            // identifier:variant
+            final int image = key.indexOf("::");
+            if (image >= 0) {
+                return key.substring(0, image);
+            }
+            final int variant = key.lastIndexOf(':');
+            return variant < 0 ? null : key.substring(0, variant);
+        case "pdfItemInfo":
+            return key.endsWith(PdfItemInfo.CACHE_SUFFIX) ? key.substring(0, key.length() - PdfItemInfo.CACHE_SUFFIX.length())
+                    : key;
+        default:
+            // archiveInfo
+            return key;
+        }
+    }
+
+    static void add(final String cacheName, final String key, final Object value) {
+        final String group = getGroup(cacheName, key);
+        if (group == null) {
+            return;
+        }
+        groups.computeIfAbsent(group, g -> ConcurrentHashMap.newKeySet()).add(cacheName + SEP + key);
+        if (value instanceof MetadataStore.Entry && ((MetadataStore.Entry<?>) value).value instanceof ImageGroupInfo) {
+            addVolume(group, (ImageGroupInfo) ((MetadataStore.Entry<?>) value).value);
+        }
+    }
+
+    static void remove(final String cacheName, final String key) {
+        final String group = getGroup(cacheName, key);
+        if (group == null) {
+            return;
+        }
+        final Set<String> keys = groups.get(group);
+        if (keys != null) {
+            keys.remove(cacheName + SEP + key);
+            if (keys.isEmpty()) {
+                groups.remove(group, keys);
+            }
+        }
+    }
+
+    static void addVolume(final String volumeId, final ImageGroupInfo igi) {
+        if (igi.imageInstanceId != null && igi.imageGroup != null) {
+            volumeDirs.put(volumeId, ImageProviderService.getKeyPrefix(igi));
+        }
+        for (String instance : new String[] { igi.instanceId, igi.imageInstanceId }) {
+            if (instance != null) {
+                instanceVolumes.computeIfAbsent(getShortId(instance), i -> ConcurrentHashMap.newKeySet()).add(volumeId);
+            }
+        }
+    }
+
+    // bdr:X for the full uri or the prefixed form of a resource
+    static String getShortId(final String id) {
+        if (id.startsWith("bdr:")) {
+            return id;
+        }
+        return "bdr:" + id.substring(id.lastIndexOf('/') + 1);
+    }
+
+    // removes the keys of the index for the group, in both tiers
+    static int invalidateGroup(final String group) {
+        final Set<String> keys = groups.remove(group);
+        if (keys == null) {
+            return 0;
+        }
+        for (String k : keys) {
+            final int sep = k.indexOf(SEP);
+            final String cacheName = k.substring(0, sep);
+            final String key = k.substring(sep + 1);
+            EHServerCache.remove(cacheName, key);
+            MetadataStore.remove(cacheName, key);
+        }
+        return keys.size();
+    }
+
+    /**
+     * Removes everything cached for an image group: its info, image list,
+     * images, info.json documents, sprites, pdf metadata and archives. When
+     * rewarm is true its info and image list are fetched again in the
+     * background. Returns the number of entries removed.
+     */
+    public static int invalidateVolume(String volumeId, final boolean rewarm) {
+        volumeId = getShortId(volumeId);
+        int removed = 0;
+        String dir = volumeDirs.get(volumeId);
+        if (dir == null) {
+            final ImageGroupInfo igi = ImageGroupInfoService.Instance.peek(volumeId);
+            if (igi != null && igi.imageInstanceId != null) {
+                dir = ImageProviderService.getKeyPrefix(igi);
+            }
+        }
+        if (dir != null) {
+            final String listKey = dir + "dimensions.json";
+            final List<ImageInfo> ili = ImageInfoListService.Instance.peek(listKey);
+            if (ili != null) {
+                for (ImageInfo imgInf : ili) {
+                    ImageProviderService.InstanceArchive.invalidate(dir + imgInf.filename);
+                    final String identifier = volumeId + "::" + imgInf.filename;
+                    EHServerCache.remove(InfoJsonCache.CACHE_NAME, identifier + InfoJsonCache.VARIANT_OPEN);
+                    EHServerCache.remove(InfoJsonCache.CACHE_NAME, identifier + InfoJsonCache.VARIANT_AUTH);
+                }
+                final int nbChunks = (ili.size() + SpriteService.CHUNK_SIZE - 1) / SpriteService.CHUNK_SIZE;
+                for (int chunk = 0; chunk < nbChunks; chunk++) {
+                    SpriteService.remove(volumeId + ":" + chunk);
+                }
+                removed += ili.size();
+            }
+            removed += invalidateGroup(dir);
+            ImageInfoListService.Instance.invalidate(listKey);
+            // images added by a re-scan must not be answered by a cached 404
+            ImageProviderService.InstanceArchive.invalidateFailures(dir);
+        }
+        removed += invalidateGroup(volumeId);
+        ImageGroupInfoService.Instance.invalidate(volumeId);
+        RasterCache.removeByPrefix(volumeId + "::");
+        EHServerCache.remove("archiveInfo", volumeId);
+        MetadataStore.remove("archiveInfo", volumeId);
+        removed += ArchiveFileStore.deleteByPrefix(volumeId + ":");
+        removed += ArchiveFileStore.deleteByPrefix(volumeId + "FAIR_USE:");
+        log.info("invalidated {} entries for {}", removed, volumeId);
+        if (rewarm) {
+            rewarm(volumeId);
+        }
+        return removed;
+    }
+
+    /**
+     * Invalidates all the image groups known for an instance or an image
+     * instance, and its item info and item archives.
+     */
+    public static int invalidateInstance(String instanceId, final boolean rewarm) {
+        instanceId = getShortId(instanceId);
+        final Set<String> volumes = new HashSet<>(instanceVolumes.getOrDefault(instanceId, Collections.emptySet()));
+        final String itemKey = instanceId + PdfItemInfo.CACHE_SUFFIX;
+        final PdfItemInfo item = EHServerCache.PDF_ITEM_INFO.get(itemKey);
+        if (item != null) {
+            for (String vol : item.getItemVolumes()) {
+                volumes.add(getShortId(vol));
+            }
+        }
+        int removed = 0;
+        for (String volumeId : volumes) {
+            removed += invalidateVolume(volumeId, rewarm);
+        }
+        instanceVolumes.remove(instanceId);
+        removed += invalidateGroup(instanceId);
+        EHServerCache.remove("pdfItemInfo", itemKey);
+        MetadataStore.remove("pdfItemInfo", itemKey);
+        removed += ArchiveFileStore.deleteByPrefix(instanceId + ItemArchiveBuilder.ITEM_MARK);
+        removed += ArchiveFileStore.deleteByPrefix(instanceId + "FAIR_USE" + ItemArchiveBuilder.ITEM_MARK);
+        return removed;
+    }
+
+    // a namespace (bdr:, archive:, etc.) followed by the start of an id, so
+    // that a typo doesn't empty the caches
+    public static boolean isValidPrefix(final String prefix) {
+        return prefix != null && VALID_PREFIX.matcher(prefix).matches();
+    }
+
+    /**
+     * Removes the entries with a key starting with the prefix from all the
+     * caches. This goes through all the entries, including those on disk, so
+     * it's much slower than the invalidation of a volume or an instance.
+     */
+    public static int invalidatePrefix(final String prefix) {
+        if (!isValidPrefix(prefix)) {
+            log.warn("not invalidating the invalid prefix {}", prefix);
+            return 0;
+        }
+        int removed = 0;
+        for (CacheWrapper<?, ?> cache : EHServerCache.getAllAnyCaches()) {
+            removed += cache.removeByPrefix(prefix);
+        }
+        removed += MetadataStore.removeAllByPrefix(prefix);
+        removed += NegativeCache.removeByPrefix(prefix);
+        RasterCache.removeByPrefix(prefix);
+        removed += ArchiveFileStore.deleteByPrefix(prefix);
+        log.info("invalidated {} entries with prefix {}", removed, prefix);
+        return removed;
+    }
+
+    static void rewarm(final String volumeId) {
+        rewarmService.submit(() -> {
+            try {
+                new IdentifierInfo(volumeId);
+            } catch (IIIFException e) {
+                log.warn("could not rewarm the caches for {}", volumeId, e);
+            }
+        });
+    }
+
+    public static void clear() {
+        groups.clear();
+        volumeDirs.clear();
+        instanceVolumes.clear();
+    }
+
+}
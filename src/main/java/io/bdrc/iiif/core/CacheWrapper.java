@@ -1,6 +1,14 @@
 package io.bdrc.iiif.core;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
 import org.ehcache.Cache;
+import org.ehcache.event.CacheEventListener;
+import org.ehcache.event.EventFiring;
+import org.ehcache.event.EventOrdering;
+import org.ehcache.event.EventType;
 
 import io.bdrc.iiif.exceptions.IIIFException;
 
@@ -27,6 +35,31 @@ public class CacheWrapper<K, V> {
         cache.put(key, value);
     }
 
+    public void remove(K key) {
+        cache.remove(key);
+    }
+
+    // iterates over the whole cache, including its disk tier
+    public int removeByPrefix(String prefix) {
+        final List<K> keys = new ArrayList<>();
+        for (Cache.Entry<K, V> e : cache) {
+            if (e.getKey().toString().startsWith(prefix)) {
+                keys.add(e.getKey());
+            }
+        }
+        for (K key : keys) {
+            cache.remove(key);
+        }
+        return keys.size();
+    }
+
+    // the events of a key are received in order, so the last one is the state
+    // of the key
+    public void addListener(CacheEventListener<? super K, ? super V> listener) {
+        cache.getRuntimeConfiguration().registerCacheEventListener(listener, EventOrdering.ORDERED, EventFiring.ASYNCHRONOUS,
+                EnumSet.of(EventType.CREATED, EventType.UPDATED, EventType.EVICTED, EventType.EXPIRED, EventType.REMOVED));
+    }
+
     public void clear() {
         cache.clear();
     }
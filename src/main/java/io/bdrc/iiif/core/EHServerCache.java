@@ -22,24 +22,31 @@ import org.ehcache.core.statistics.TierStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.bdrc.iiif.archives.ArchiveFileStore;
 import io.bdrc.iiif.archives.ArchiveInfo;
 import io.bdrc.iiif.archives.PdfItemInfo;
 import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.image.service.InfoJsonCache;
+import io.bdrc.iiif.image.service.RasterCache;
+import io.bdrc.iiif.image.service.SpriteService;
 import io.bdrc.iiif.metrics.CacheMetrics;
-import io.bdrc.iiif.resolver.ImageGroupInfo;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class EHServerCache {
 
     private static final Logger log = LoggerFactory.getLogger(EHServerCache.class);
 
+    public static final long DEFAULT_IMAGE_LIST_CACHE_MB = 64;
+
     public static Cache<String, byte[]> IIIF_IMG;
-    public static Cache<String, byte[]> IIIF_ZIP;
-    public static Cache<String, byte[]> IIIF_PDF;
+    // null when the puts are written synchronously
+    public static WriteBehind IIIF_IMG_WRITER;
+    public static Cache<String, byte[]> IIIF_SPRITE;
     public static Cache<String, PdfItemInfo> PDF_ITEM_INFO;
     public static Cache<String, ArchiveInfo> ARCHIVE_INFO;
-    public static Cache<String, ImageGroupInfo> IMAGE_GROUP_INFO;
-    public static Cache<String, List> IMAGE_LIST_INFO;
+    public static Cache<String, MetadataStore.Entry> IMAGE_GROUP_INFO;
+    public static Cache<String, MetadataStore.Entry> IMAGE_LIST_INFO;
+    public static Cache<String, InfoJsonCache.Entry> INFO_JSON;
     private static HashMap<String, CacheWrapper> MAP;
     private static HashMap<String, CacheWrapper> MAP_DISK;
     private static HashMap<String, CacheWrapper> MAP_MEM;
@@ -65,22 +72,15 @@ public class EHServerCache {
         MAP.put("iiif_img", new CacheWrapper(IIIF_IMG, "iiif_img"));
         MAP_DISK.put("iiif_img", new CacheWrapper(IIIF_IMG, "iiif_img"));
         CACHE_STATS.put("iiif_img", statsService.getCacheStatistics("iiif_img"));
+        IIIF_IMG_WRITER = WriteBehind.create("iiif_img", IIIF_IMG);
 
-        PersistentCacheManager iiif_zip = CacheManagerBuilder.newCacheManagerBuilder().using(statsService)
-                .with(CacheManagerBuilder.persistence(System.getProperty("user.dir") + File.separator + "EH_IIIF_ZIP")).build(true);
-        IIIF_ZIP = iiif_zip.createCache("iiif_zip", CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class, byte[].class,
-                ResourcePoolsBuilder.newResourcePoolsBuilder().heap(500, EntryUnit.ENTRIES).disk(10000, MemoryUnit.MB, true)));
-        MAP.put("iiif_zip", new CacheWrapper(IIIF_ZIP, "iiif_zip"));
-        MAP_DISK.put("iiif_zip", new CacheWrapper(IIIF_ZIP, "iiif_zip"));
-        CACHE_STATS.put("iiif_zip", statsService.getCacheStatistics("iiif_zip"));
-
-        PersistentCacheManager iiif = CacheManagerBuilder.newCacheManagerBuilder().using(statsService)
-                .with(CacheManagerBuilder.persistence(System.getProperty("user.dir") + File.separator + "EH_IIIF_PDF")).build(true);
-        IIIF_PDF = iiif.createCache("iiif_pdf", CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class, byte[].class,
-                ResourcePoolsBuilder.newResourcePoolsBuilder().heap(500, EntryUnit.ENTRIES).disk(10000, MemoryUnit.MB, true)));
-        MAP.put("iiif_pdf", new CacheWrapper(IIIF_PDF, "iiif_pdf"));
-        MAP_DISK.put("iiif_pdf", new CacheWrapper(IIIF_PDF, "iiif_pdf"));
-        CACHE_STATS.put("iiif_pdf", statsService.getCacheStatistics("iiif_pdf"));
+        PersistentCacheManager iiif_sprite = CacheManagerBuilder.newCacheManagerBuilder().using(statsService)
+                .with(CacheManagerBuilder.persistence(System.getProperty("user.dir") + File.separator + "EH_IIIF_SPRITE")).build(true);
+        IIIF_SPRITE = iiif_sprite.createCache("iiif_sprite", CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class, byte[].class,
+                ResourcePoolsBuilder.newResourcePoolsBuilder().heap(200, EntryUnit.ENTRIES).disk(2000, MemoryUnit.MB, true)));
+        MAP.put("iiif_sprite", new CacheWrapper(IIIF_SPRITE, "iiif_sprite"));
+        MAP_DISK.put("iiif_sprite", new CacheWrapper(IIIF_SPRITE, "iiif_sprite"));
+        CACHE_STATS.put("iiif_sprite", statsService.getCacheStatistics("iiif_sprite"));
 
         /**** MEMORY CACHES ***/
         PDF_ITEM_INFO = cacheManager.createCache("pdfItemInfo", CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class,
@@ -95,18 +95,35 @@ public class EHServerCache {
         MAP_MEM.put("archiveInfo", new CacheWrapper(ARCHIVE_INFO, "archiveInfo"));
         CACHE_STATS.put("archiveInfo", statsService.getCacheStatistics("archiveInfo"));
 
+        // the metadata is kept with its fetch time, see ConcurrentResourceService.refreshAhead
         IMAGE_GROUP_INFO = cacheManager.createCache("imageGroupInfo", CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class,
-                ImageGroupInfo.class, ResourcePoolsBuilder.newResourcePoolsBuilder().heap(500, EntryUnit.ENTRIES)));
+                MetadataStore.Entry.class, ResourcePoolsBuilder.newResourcePoolsBuilder().heap(500, EntryUnit.ENTRIES)));
         MAP.put("imageGroupInfo", new CacheWrapper(IMAGE_GROUP_INFO, "imageGroupInfo"));
         MAP_MEM.put("imageGroupInfo", new CacheWrapper(IMAGE_GROUP_INFO, "imageGroupInfo"));
         CACHE_STATS.put("imageGroupInfo", statsService.getCacheStatistics("imageGroupInfo"));
 
-        IMAGE_LIST_INFO = cacheManager.createCache("imageListInfo", CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class, List.class,
-                ResourcePoolsBuilder.newResourcePoolsBuilder().heap(500, EntryUnit.ENTRIES)));
+        // the lists are columnar (ImageInfoList), so the cache can be sized in bytes
+        IMAGE_LIST_INFO = cacheManager.createCache("imageListInfo", CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class,
+                MetadataStore.Entry.class, ResourcePoolsBuilder.newResourcePoolsBuilder().heap(getImageListCacheMB(), MemoryUnit.MB)));
         MAP.put("imageListInfo", new CacheWrapper(IMAGE_LIST_INFO, "imageListInfo"));
         MAP_MEM.put("imageListInfo", new CacheWrapper(IMAGE_LIST_INFO, "imageListInfo"));
         CACHE_STATS.put("imageListInfo", statsService.getCacheStatistics("imageListInfo"));
 
+        INFO_JSON = cacheManager.createCache("infoJson", CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class,
+                InfoJsonCache.Entry.class, ResourcePoolsBuilder.newResourcePoolsBuilder().heap(20000, EntryUnit.ENTRIES)));
+        MAP.put("infoJson", new CacheWrapper(INFO_JSON, "infoJson"));
+        MAP_MEM.put("infoJson", new CacheWrapper(INFO_JSON, "infoJson"));
+        CACHE_STATS.put("infoJson", statsService.getCacheStatistics("infoJson"));
+
+        // keeps track of the keys of each image group, see CacheKeyIndex
+        for (Map.Entry<String, CacheWrapper> e : MAP.entrySet()) {
+            e.getValue().addListener(new CacheKeyIndex.Listener(e.getKey()));
+        }
+    }
+
+    static long getImageListCacheMB() {
+        final String mb = Application.getProperty("imageListCacheMB");
+        return mb == null ? DEFAULT_IMAGE_LIST_CACHE_MB : Long.parseLong(mb);
     }
 
     public static CacheWrapper getCache(String name) {
@@ -171,30 +188,75 @@ public class EHServerCache {
         return CACHE_STATS.get(name).getTierStatistics();
     }
 
+    static WriteBehind getWriter(String cacheName) {
+        return "iiif_img".equals(cacheName) ? IIIF_IMG_WRITER : null;
+    }
+
     public static Object get(String cacheName, String key) throws IIIFException {
         log.debug("EHServerCACHE get from {} with key {}", cacheName, key);
         CacheMetrics.cacheGet(cacheName);
+        final WriteBehind writer = getWriter(cacheName);
+        if (writer != null) {
+            final byte[] staged = writer.get(key);
+            if (staged != null) {
+                return staged;
+            }
+        }
         return getCache(cacheName).get(key);
     }
 
     public static boolean constainsKey(String cacheName, String key) throws IIIFException {
         log.debug("EHServerCACHE isInCache from {} with key {}", cacheName, key);
+        final WriteBehind writer = getWriter(cacheName);
+        if (writer != null && writer.contains(key)) {
+            return true;
+        }
         return getCache(cacheName).containsKey(key);
     }
     
     public static void put(String cacheName, String key, Object obj) throws IIIFException {
         log.debug("EHServerCACHE put in {} for key {}", cacheName, key);
         CacheMetrics.cachePut(cacheName);
+        final WriteBehind writer = getWriter(cacheName);
+        if (writer != null) {
+            // the disk write is done in the background, or not at all when
+            // too much is waiting
+            writer.put(key, (byte[]) obj);
+            return;
+        }
         getCache(cacheName).put(key, obj);
     }
 
+    public static void remove(String cacheName, String key) {
+        log.debug("EHServerCACHE remove from {} for key {}", cacheName, key);
+        final WriteBehind writer = getWriter(cacheName);
+        if (writer != null) {
+            writer.remove(key);
+        }
+        final CacheWrapper cache = getCache(cacheName);
+        if (cache != null) {
+            cache.remove(key);
+        }
+    }
+
     public static boolean clearCache() {
         try {
+            if (IIIF_IMG_WRITER != null) {
+                IIIF_IMG_WRITER.clear();
+            }
             IIIF_IMG.clear();
-            IIIF_ZIP.clear();
-            IIIF_PDF.clear();
+            ArchiveFileStore.clear();
+            IIIF_SPRITE.clear();
+            SpriteService.clearPartials();
             PDF_ITEM_INFO.clear();
             ARCHIVE_INFO.clear();
+            INFO_JSON.clear();
+            IMAGE_GROUP_INFO.clear();
+            IMAGE_LIST_INFO.clear();
+            MetadataStore.clearAll();
+            CacheKeyIndex.clear();
+            NegativeCache.clear();
+            RasterCache.clear();
             return true;
         } catch (Exception ex) {
             return false;
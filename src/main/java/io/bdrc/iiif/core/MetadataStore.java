@@ -0,0 +1,295 @@
+package io.bdrc.iiif.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
+
+/**
+ * Disk tier under the heap caches of the metadata (image group info, image
+ * lists, item and archive info), so that a restart doesn't start with cold
+ * caches. There is one file per entry, in a compact binary encoding given by
+ * the cached class, read only when the heap cache misses it.
+ *
+ * Entries younger than the ttl are fresh. Older entries are still served, but
+ * refreshed in the background, until they reach the max stale age.
+ */
+public class MetadataStore<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(MetadataStore.class);
+
+    public static final long DEFAULT_TTL_S = 24 * 3600L;
+    public static final long DEFAULT_MAX_STALE_S = 7 * 24 * 3600L;
+    public static final long DEFAULT_RETRY_S = 60;
+    static final byte VERSION = 1;
+    static final long TTL_MS = getSeconds("metadataTtlS", DEFAULT_TTL_S) * 1000;
+    static final long MAX_STALE_MS = getSeconds("metadataMaxStaleS", DEFAULT_MAX_STALE_S) * 1000;
+    static final long RETRY_MS = getSeconds("metadataRetryS", DEFAULT_RETRY_S) * 1000;
+
+    public interface Writer<T> {
+        void write(DataOutput out, T value) throws IOException;
+    }
+
+    public interface Reader<T> {
+        T read(DataInput in) throws IOException;
+    }
+
+    /**
+     * A value with the time it was fetched. The heap caches of the metadata
+     * keep their values in entries too, so that both tiers share the same ttl.
+     */
+    public static class Entry<T> {
+        public final T value;
+        public final long written;
+
+        public Entry(T value, long written) {
+            this.value = value;
+            this.written = written;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() - written <= TTL_MS;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() - written > MAX_STALE_MS;
+        }
+    }
+
+    private static final Map<String, MetadataStore<?>> stores = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService refreshService = Executors.newScheduledThreadPool(2);
+    private static final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    private final String name;
+    private final File dir;
+    private final Writer<T> writer;
+    private final Reader<T> reader;
+
+    private MetadataStore(String name, File dir, Writer<T> writer, Reader<T> reader) {
+        this.name = name;
+        this.dir = dir;
+        this.writer = writer;
+        this.reader = reader;
+    }
+
+    private static long getSeconds(String property, long defaultValue) {
+        final String val = Application.getProperty(property);
+        return val == null ? defaultValue : Long.parseLong(val);
+    }
+
+    /**
+     * The store of a cache, null if the metadata store is disabled (the
+     * metadataStore property set to false)
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized <T> MetadataStore<T> get(String name, Writer<T> writer, Reader<T> reader) {
+        if ("false".equals(Application.getProperty("metadataStore"))) {
+            return null;
+        }
+        MetadataStore<T> store = (MetadataStore<T>) stores.get(name);
+        if (store == null) {
+            String root = Application.getProperty("metadataStoreDir");
+            if (root == null) {
+                root = System.getProperty("user.dir") + File.separator + "EH_METADATA";
+            }
+            final File dir = new File(root, name);
+            dir.mkdirs();
+            store = new MetadataStore<>(name, dir, writer, reader);
+            stores.put(name, store);
+            log.info("metadata store {} in {}", name, dir);
+        }
+        return store;
+    }
+
+    public static void clearAll() {
+        for (MetadataStore<?> store : stores.values()) {
+            store.clear();
+        }
+    }
+
+    File getFile(String key) {
+        final String hash = DigestUtils.md5DigestAsHex(key.getBytes(StandardCharsets.UTF_8));
+        return new File(new File(dir, hash.substring(0, 2)), hash);
+    }
+
+    // the entry, null if there is none or if it is too old to be served
+    public Entry<T> get(String key) {
+        final File f = getFile(key);
+        if (!f.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            final long written = in.readLong();
+            if (!key.equals(in.readUTF())) {
+                return null;
+            }
+            if (System.currentTimeMillis() - written > MAX_STALE_MS) {
+                in.close();
+                f.delete();
+                return null;
+            }
+            return new Entry<>(reader.read(in), written);
+        } catch (IOException | RuntimeException e) {
+            log.error("could not read {} from the metadata store {}", key, name, e);
+            f.delete();
+            return null;
+        }
+    }
+
+    public void put(String key, T value) {
+        put(key, value, System.currentTimeMillis());
+    }
+
+    public void put(String key, T value, long written) {
+        final File f = getFile(key);
+        f.getParentFile().mkdirs();
+        final File tmp = new File(f.getParentFile(), f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeByte(VERSION);
+                out.writeLong(written);
+                out.writeUTF(key);
+                writer.write(out, value);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            log.error("could not write {} in the metadata store {}", key, name, e);
+            tmp.delete();
+        }
+    }
+
+    public void remove(String key) {
+        getFile(key).delete();
+    }
+
+    public static void remove(String name, String key) {
+        final MetadataStore<?> store = stores.get(name);
+        if (store != null) {
+            store.remove(key);
+        }
+    }
+
+    // the file names are hashes, so the key of each entry is read
+    public int removeByPrefix(String prefix) {
+        int removed = 0;
+        final File[] subdirs = dir.listFiles(File::isDirectory);
+        if (subdirs == null) {
+            return 0;
+        }
+        for (File sub : subdirs) {
+            final File[] files = sub.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                String key = null;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                    in.readByte();
+                    in.readLong();
+                    key = in.readUTF();
+                } catch (IOException e) {
+                    log.debug("could not read the key of {}", f, e);
+                }
+                if (key != null && key.startsWith(prefix) && f.delete()) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    public static int removeAllByPrefix(String prefix) {
+        int removed = 0;
+        for (MetadataStore<?> store : stores.values()) {
+            removed += store.removeByPrefix(prefix);
+        }
+        return removed;
+    }
+
+    public void clear() {
+        final File[] subdirs = dir.listFiles();
+        if (subdirs == null) {
+            return;
+        }
+        for (File sub : subdirs) {
+            final File[] files = sub.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reloads a stale entry in the background. The new value is put in the
+     * store and passed to onLoaded.
+     */
+    public void refresh(final String key, final Callable<T> loader, final Consumer<T> onLoaded) {
+        refreshAhead(name + ":" + key, () -> {
+            final T value = loader.call();
+            if (value != null) {
+                put(key, value);
+                onLoaded.accept(value);
+            }
+            return value;
+        });
+    }
+
+    /**
+     * Runs the refresh of a stale value in the background, once at a time per
+     * key. When it fails the stale value keeps being served and the refresh is
+     * not retried before metadataRetryS, so that an outage of the dataserver
+     * doesn't turn into a refresh per request.
+     */
+    public static void refreshAhead(final String key, final Callable<?> refresh) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        refreshService.submit(() -> {
+            try {
+                refresh.call();
+                refreshing.remove(key);
+            } catch (Exception e) {
+                log.warn("could not refresh {}, the stale value is served", key, e);
+                refreshService.schedule(() -> refreshing.remove(key), RETRY_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+}
@@ -0,0 +1,203 @@
+package io.bdrc.iiif.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Remembers the resources that couldn't be fetched (missing S3 keys, image
+ * lists or image groups), so that the crawlers and broken manifests asking for
+ * them again don't reach S3 or LDS each time. The failures are kept in a
+ * bounded LRU map with a ttl depending on the status, behind a Bloom filter so
+ * that the lookups of the resources that never failed, which are nearly all
+ * of them, don't take the lock.
+ *
+ * The ttl of a status is the negativeTtlS.{status} property, by default 10
+ * minutes for 404, 10 seconds for 5xx and no caching for the others.
+ */
+public class NegativeCache {
+
+    private static final Logger log = LoggerFactory.getLogger(NegativeCache.class);
+
+    public static final int DEFAULT_SIZE = 100000;
+    public static final long DEFAULT_NOT_FOUND_TTL_S = 600;
+    public static final long DEFAULT_SERVER_ERROR_TTL_S = 10;
+    static final int BITS_PER_ENTRY = 10;
+    static final int HASHES = 7;
+
+    static class Failure {
+        final IIIFException error;
+        final long expires;
+
+        Failure(IIIFException error, long expires) {
+            this.error = error;
+            this.expires = expires;
+        }
+    }
+
+    static final int size = getSize();
+    private static final Map<String, Failure> failures = new LinkedHashMap<String, Failure>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+            return size() > size;
+        }
+    };
+    private static final int nbBits = Math.max(64, size * BITS_PER_ENTRY);
+    private static volatile AtomicLongArray bloom = new AtomicLongArray((nbBits + 63) / 64);
+    // keys added to the filter since it was built, it's rebuilt from the
+    // remaining failures when they are as many as the size
+    private static int added = 0;
+
+    static int getSize() {
+        final String val = Application.getProperty("negativeCacheSize");
+        return val == null ? DEFAULT_SIZE : Integer.parseInt(val);
+    }
+
+    static long getTtlMs(final int status) {
+        final String val = Application.getProperty("negativeTtlS." + status);
+        if (val != null) {
+            return Long.parseLong(val) * 1000;
+        }
+        if (status == 404) {
+            return DEFAULT_NOT_FOUND_TTL_S * 1000;
+        }
+        if (status >= 500) {
+            return DEFAULT_SERVER_ERROR_TTL_S * 1000;
+        }
+        return 0;
+    }
+
+    private static int hash2(final String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        h ^= h >>> 15;
+        return h | 1;
+    }
+
+    private static boolean mightContain(final AtomicLongArray filter, final String key) {
+        final int h1 = key.hashCode();
+        final int h2 = hash2(key);
+        for (int i = 0; i < HASHES; i++) {
+            final int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % nbBits;
+            if ((filter.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addToFilter(final AtomicLongArray filter, final String key) {
+        final int h1 = key.hashCode();
+        final int h2 = hash2(key);
+        for (int i = 0; i < HASHES; i++) {
+            final int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % nbBits;
+            final int word = bit >>> 6;
+            final long mask = 1L << bit;
+            long old;
+            do {
+                old = filter.get(word);
+            } while ((old & mask) == 0 && !filter.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    /**
+     * The error of the last failed fetch of the key if it hasn't expired, null
+     * otherwise.
+     */
+    public static IIIFException get(final String cacheName, final String key) {
+        if (!mightContain(bloom, key)) {
+            return null;
+        }
+        final Failure f;
+        synchronized (failures) {
+            f = failures.get(key);
+            if (f != null && f.expires < System.currentTimeMillis()) {
+                failures.remove(key);
+                return null;
+            }
+        }
+        if (f == null) {
+            return null;
+        }
+        if ("true".equals(Application.getProperty("metricsEnabled"))) {
+            Metrics.counter(cacheName + ".negative_cache", "action", "suppressed").increment();
+        }
+        return f.error;
+    }
+
+    public static void put(final String cacheName, final String key, final IIIFException error) {
+        final long ttl = getTtlMs(error.getStatus());
+        if (ttl <= 0) {
+            return;
+        }
+        log.debug("caching the failure {} of {}", error.getStatus(), key);
+        synchronized (failures) {
+            failures.put(key, new Failure(error, System.currentTimeMillis() + ttl));
+            added++;
+            if (added > size) {
+                rebuild();
+            } else {
+                addToFilter(bloom, key);
+            }
+        }
+        if ("true".equals(Application.getProperty("metricsEnabled"))) {
+            Metrics.counter(cacheName + ".negative_cache", "action", "put").increment();
+        }
+    }
+
+    // called with the lock, drops the expired failures and the evicted keys
+    private static void rebuild() {
+        final AtomicLongArray filter = new AtomicLongArray(bloom.length());
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, Failure>> it = failures.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Failure> e = it.next();
+            if (e.getValue().expires < now) {
+                it.remove();
+            } else {
+                addToFilter(filter, e.getKey());
+            }
+        }
+        bloom = filter;
+        added = failures.size();
+    }
+
+    public static void remove(final String key) {
+        synchronized (failures) {
+            failures.remove(key);
+        }
+    }
+
+    // the keys are cacheName:key, the prefix is matched against the key in
+    // all the caches
+    public static int removeByPrefix(final String prefix) {
+        synchronized (failures) {
+            final List<String> keys = new ArrayList<>();
+            for (String key : failures.keySet()) {
+                if (key.startsWith(prefix, key.indexOf(':') + 1)) {
+                    keys.add(key);
+                }
+            }
+            failures.keySet().removeAll(keys);
+            return keys.size();
+        }
+    }
+
+    public static void clear() {
+        synchronized (failures) {
+            failures.clear();
+            rebuild();
+        }
+    }
+
+}
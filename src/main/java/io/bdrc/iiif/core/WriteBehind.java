@@ -0,0 +1,141 @@
+package io.bdrc.iiif.core;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ehcache.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Writes the puts of a persistent cache in the background, so that the
+ * requests don't wait for multi-MB values to be serialized and written to
+ * disk. The values are staged in memory, where the reads find them, until a
+ * writer puts them in the cache. Successive puts of a key are coalesced into
+ * one write, and puts are dropped when the staged values exceed the maximum
+ * size: losing a cache entry only costs a fetch.
+ */
+public class WriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteBehind.class);
+
+    public static final long DEFAULT_MAX_MB = 256;
+    public static final int DEFAULT_WRITERS = 2;
+
+    final String cacheName;
+    final Cache<String, byte[]> cache;
+    final long maxBytes;
+
+    private final Map<String, byte[]> staged = new ConcurrentHashMap<>();
+    // each staged key is once in the queue
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong stagedBytes = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public WriteBehind(String cacheName, Cache<String, byte[]> cache, long maxBytes, int writers) {
+        this.cacheName = cacheName;
+        this.cache = cache;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < writers; i++) {
+            final Thread t = new Thread(this::write, cacheName + "-writer-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        if ("true".equals(Application.getProperty("metricsEnabled"))) {
+            Metrics.gauge(cacheName + ".write_behind.queue", queue, BlockingQueue::size);
+            Metrics.gauge(cacheName + ".write_behind.staged_bytes", stagedBytes, AtomicLong::get);
+            Metrics.gauge(cacheName + ".write_behind.written", written, AtomicLong::get);
+            Metrics.gauge(cacheName + ".write_behind.dropped", dropped, AtomicLong::get);
+        }
+    }
+
+    public static WriteBehind create(String cacheName, Cache<String, byte[]> cache) {
+        if ("false".equals(Application.getProperty("writeBehind"))) {
+            return null;
+        }
+        final String mb = Application.getProperty("writeBehindMaxMB");
+        final String writers = Application.getProperty("writeBehindWriters");
+        return new WriteBehind(cacheName, cache, (mb == null ? DEFAULT_MAX_MB : Long.parseLong(mb)) * 1024 * 1024,
+                writers == null ? DEFAULT_WRITERS : Integer.parseInt(writers));
+    }
+
+    // false if the value was dropped because too much is waiting to be written
+    public boolean put(String key, byte[] value) {
+        if (stagedBytes.get() + value.length > maxBytes) {
+            dropped.incrementAndGet();
+            log.debug("write behind of {} is full, dropping {}", cacheName, key);
+            return false;
+        }
+        stagedBytes.addAndGet(value.length);
+        final byte[] previous = staged.put(key, value);
+        if (previous == null) {
+            queue.add(key);
+        } else {
+            stagedBytes.addAndGet(-previous.length);
+        }
+        return true;
+    }
+
+    public byte[] get(String key) {
+        return staged.get(key);
+    }
+
+    public boolean contains(String key) {
+        return staged.containsKey(key);
+    }
+
+    public void remove(String key) {
+        final byte[] value = staged.remove(key);
+        if (value != null) {
+            stagedBytes.addAndGet(-value.length);
+        }
+    }
+
+    public void clear() {
+        for (String key : staged.keySet()) {
+            remove(key);
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void write() {
+        while (true) {
+            final String key;
+            try {
+                key = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            final byte[] value = staged.get(key);
+            if (value == null) {
+                // removed before it was written
+                continue;
+            }
+            try {
+                cache.put(key, value);
+                written.incrementAndGet();
+            } catch (RuntimeException e) {
+                log.error("could not write {} in {}", key, cacheName, e);
+            }
+            // a value put meanwhile must be written too, and a value removed
+            // meanwhile must not stay in the cache
+            if (staged.remove(key, value)) {
+                stagedBytes.addAndGet(-value.length);
+            } else if (staged.containsKey(key)) {
+                queue.add(key);
+            } else {
+                cache.remove(key);
+            }
+        }
+    }
+
+}
@@ -71,6 +71,10 @@ public class IIIFException extends Exception {
         this.status = status;
     }
 
+    public int getStatus() {
+        return status;
+    }
+
     public void setCode(int code) {
         this.code = code;
     }
@@ -0,0 +1,251 @@
+package io.bdrc.iiif.image.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.bdrc.iiif.core.Application;
+
+/**
+ * Restores the hot entries of the caches after a restart. The accesses to the
+ * image group info, image lists and images are counted, and the most accessed
+ * keys of each service are regularly saved with their counts (halved at each
+ * snapshot so that old accesses fade out). At startup the saved keys are
+ * loaded again in the background, metadata first, at a limited rate: the
+ * images come from the disk tier of the image cache or from S3, the metadata
+ * from the metadata store or LDS. The server is reported ready as soon as the
+ * metadata is loaded (or warmUpReadyPercent of all the keys), the images
+ * being loaded in the background after that.
+ */
+public class CacheWarmer {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+
+    public static final int DEFAULT_MAX_KEYS = 10000;
+    public static final int DEFAULT_SNAPSHOT_S = 600;
+    public static final int DEFAULT_RATE = 50;
+    public static final int DEFAULT_READY_PERCENT = 100;
+
+    public static final String STATE_IDLE = "idle";
+    public static final String STATE_WARMING = "warming";
+    // the metadata is loaded, the images are being loaded
+    public static final String STATE_WARMING_IMAGES = "warming_images";
+    public static final String STATE_READY = "ready";
+
+    // service -> key -> number of accesses
+    private static final Map<String, Map<String, LongAdder>> counts = new ConcurrentHashMap<>();
+    // in loading order
+    static final Map<String, ConcurrentResourceService<?>> services = new LinkedHashMap<>();
+    static {
+        register(ImageGroupInfoService.Instance);
+        register(ImageInfoListService.Instance);
+        register(ImageProviderService.InstanceArchive);
+        register(ImageProviderService.InstanceStatic);
+    }
+
+    private static final ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor();
+
+    static volatile String state = STATE_IDLE;
+    static final AtomicInteger loaded = new AtomicInteger();
+    static volatile int total = 0;
+
+    static String getName(final ConcurrentResourceService<?> s) {
+        return s.cacheName + "/" + s.cachePrefix;
+    }
+
+    private static void register(final ConcurrentResourceService<?> s) {
+        services.put(getName(s), s);
+        counts.put(getName(s), new ConcurrentHashMap<>());
+    }
+
+    static int getIntProperty(final String property, final int defaultValue) {
+        final String val = Application.getProperty(property);
+        return val == null ? defaultValue : Integer.parseInt(val);
+    }
+
+    static File getFile() {
+        final String path = Application.getProperty("warmStateFile");
+        return new File(path == null ? System.getProperty("user.dir") + File.separator + "EH_WARM_STATE" : path);
+    }
+
+    // called for each access to a cached resource
+    static void touch(final ConcurrentResourceService<?> s, final String resId) {
+        final Map<String, LongAdder> keys = counts.get(getName(s));
+        if (keys == null) {
+            return;
+        }
+        LongAdder count = keys.get(resId);
+        if (count == null) {
+            // the snapshot prunes the map, new keys wait for it when it's full
+            if (keys.size() >= 2 * getIntProperty("warmStateMaxKeys", DEFAULT_MAX_KEYS)) {
+                return;
+            }
+            count = keys.computeIfAbsent(resId, k -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * Starts restoring the last snapshot, then saves a snapshot every
+     * warmStateSnapshotS seconds and when the server stops.
+     */
+    public static void init() {
+        if ("false".equals(Application.getProperty("warmState"))) {
+            state = STATE_READY;
+            return;
+        }
+        service.submit(CacheWarmer::restore);
+        final int period = getIntProperty("warmStateSnapshotS", DEFAULT_SNAPSHOT_S);
+        service.scheduleAtFixedRate(CacheWarmer::snapshot, period, period, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(CacheWarmer::snapshot));
+    }
+
+    static synchronized void snapshot() {
+        final int maxKeys = getIntProperty("warmStateMaxKeys", DEFAULT_MAX_KEYS);
+        final File f = getFile();
+        final File tmp = new File(f.getPath() + ".tmp");
+        int nb = 0;
+        try (BufferedWriter w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Map<String, LongAdder>> e : counts.entrySet()) {
+                final List<Map.Entry<String, Long>> hot = new ArrayList<>();
+                for (Map.Entry<String, LongAdder> k : e.getValue().entrySet()) {
+                    hot.add(new AbstractMap.SimpleEntry<>(k.getKey(), k.getValue().sum()));
+                }
+                hot.sort(Comparator.comparing((Map.Entry<String, Long> k) -> k.getValue()).reversed());
+                final Map<String, LongAdder> kept = new ConcurrentHashMap<>();
+                for (Map.Entry<String, Long> k : hot.subList(0, Math.min(maxKeys, hot.size()))) {
+                    w.write(e.getKey() + "\t" + k.getValue() + "\t" + k.getKey() + "\n");
+                    final long halved = k.getValue() / 2;
+                    if (halved > 0) {
+                        final LongAdder count = new LongAdder();
+                        count.add(halved);
+                        kept.put(k.getKey(), count);
+                    }
+                    nb++;
+                }
+                // the accesses during the snapshot are lost, which doesn't matter
+                e.getValue().clear();
+                e.getValue().putAll(kept);
+            }
+        } catch (IOException e) {
+            log.error("could not write the warm state in {}", tmp, e);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log.info("saved {} hot keys in {}", nb, f);
+        } catch (IOException e) {
+            log.error("could not write the warm state in {}", f, e);
+        }
+    }
+
+    static List<String[]> readSnapshot(final File f) throws IOException {
+        final List<String[]> entries = new ArrayList<>();
+        try (BufferedReader r = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                final String[] fields = line.split("\t", 3);
+                if (fields.length == 3 && services.containsKey(fields[0])) {
+                    entries.add(fields);
+                }
+            }
+        }
+        // the metadata is needed first, then the most accessed keys
+        final List<String> order = new ArrayList<>(services.keySet());
+        entries.sort(Comparator.comparing((String[] e) -> order.indexOf(e[0]))
+                .thenComparing(e -> -Long.parseLong(e[1])));
+        return entries;
+    }
+
+    static void restore() {
+        final File f = getFile();
+        if (!f.isFile()) {
+            state = STATE_READY;
+            return;
+        }
+        final List<String[]> entries;
+        try {
+            entries = readSnapshot(f);
+        } catch (IOException | RuntimeException e) {
+            log.error("could not read the warm state in {}", f, e);
+            state = STATE_READY;
+            return;
+        }
+        total = entries.size();
+        state = STATE_WARMING;
+        final long interval = 1000000000L / Math.max(1, getIntProperty("warmUpRate", DEFAULT_RATE));
+        final long deb = System.currentTimeMillis();
+        long next = System.nanoTime();
+        for (String[] e : entries) {
+            final long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            next += interval;
+            if (STATE_WARMING.equals(state) && services.get(e[0]) instanceof ImageProviderService) {
+                state = STATE_WARMING_IMAGES;
+                log.info("warmed up the metadata in {} ms, warming up the images", System.currentTimeMillis() - deb);
+            }
+            // getAsync completes the future before returning, the failures are
+            // in the future
+            services.get(e[0]).getAsync(e[2]).whenComplete((res, ex) -> {
+                if (ex != null) {
+                    log.debug("could not warm up {} {}", e[0], e[2], ex);
+                }
+            });
+            loaded.incrementAndGet();
+        }
+        state = STATE_READY;
+        log.info("warmed up {} cache entries in {} ms", loaded.get(), System.currentTimeMillis() - deb);
+    }
+
+    public static String getState() {
+        return state;
+    }
+
+    public static int getPercentDone() {
+        return total == 0 ? 100 : (loaded.get() * 100) / total;
+    }
+
+    // ready for traffic, the images may still be warming up
+    public static boolean isReady() {
+        return STATE_READY.equals(state) || STATE_WARMING_IMAGES.equals(state)
+                || (STATE_WARMING.equals(state) && getPercentDone() >= getIntProperty("warmUpReadyPercent", DEFAULT_READY_PERCENT));
+    }
+
+    // the status of the warm up, for the readiness endpoint
+    public static Map<String, Object> getStatus() {
+        final Map<String, Object> res = new LinkedHashMap<>();
+        res.put("state", state);
+        res.put("loaded", loaded.get());
+        res.put("total", total);
+        res.put("percentdone", getPercentDone());
+        res.put("ready", isReady());
+        return res;
+    }
+
+}
@@ -12,6 +12,8 @@ import org.slf4j.LoggerFactory;
 
 import io.bdrc.iiif.core.Application;
 import io.bdrc.iiif.core.EHServerCache;
+import io.bdrc.iiif.core.MetadataStore;
+import io.bdrc.iiif.core.NegativeCache;
 import io.bdrc.iiif.exceptions.IIIFException;
 
 public class ConcurrentResourceService<T> {
@@ -21,6 +23,11 @@ public class ConcurrentResourceService<T> {
     String cachePrefix = "";
     String cacheName;
     boolean skipCache = false;
+    // disk tier under the heap cache, null if there is none
+    MetadataStore<T> store = null;
+    // the heap cache keeps MetadataStore entries, stale values are served
+    // while they are refreshed in the background and expired ones are not
+    boolean refreshAhead = false;
 
     Map<String, CompletableFuture<T>> futures = new ConcurrentHashMap<>();
 
@@ -37,7 +44,19 @@ public class ConcurrentResourceService<T> {
     T getFromCache(final String resId) {
         T t = null;
         try {
-            t = (T) EHServerCache.get(cacheName, cachePrefix + resId);
+            final Object cached = EHServerCache.get(cacheName, cachePrefix + resId);
+            if (!refreshAhead || cached == null) {
+                t = (T) cached;
+            } else {
+                final MetadataStore.Entry<T> entry = (MetadataStore.Entry<T>) cached;
+                if (entry.isExpired()) {
+                    return null;
+                }
+                if (!entry.isFresh()) {
+                    refresh(resId);
+                }
+                t = entry.value;
+            }
         } catch (IIIFException e) {
             logger.error("getFromCache, error getting object from cache", e);
         }
@@ -55,13 +74,109 @@ public class ConcurrentResourceService<T> {
     }
 
     void putInCache(final String resId, final T res) {
+        putInCache(resId, res, System.currentTimeMillis());
+    }
+
+    void putInCache(final String resId, final T res, final long fetched) {
         try {
-            EHServerCache.put(cacheName, cachePrefix + resId, res);
+            EHServerCache.put(cacheName, cachePrefix + resId, refreshAhead ? new MetadataStore.Entry<T>(res, fetched) : res);
         } catch (Exception e) {
             logger.error("putInCache, error adding to cache", e);
         }
     }
 
+    // the value of the metadata store is put back in the heap cache, a stale
+    // value is returned too but refreshed in the background
+    T getFromStore(final String resId) {
+        if (store == null) {
+            return null;
+        }
+        final MetadataStore.Entry<T> entry = store.get(cachePrefix + resId);
+        if (entry == null) {
+            return null;
+        }
+        putInCache(resId, entry.value, entry.written);
+        if (!entry.isFresh()) {
+            refresh(resId);
+        }
+        return entry.value;
+    }
+
+    // fetches a stale value again in the background, the requests are served
+    // the stale value meanwhile
+    void refresh(final String resId) {
+        MetadataStore.refreshAhead(cacheName + ":" + cachePrefix + resId, () -> {
+            final T res = getFromApi(resId);
+            putInCache(resId, res);
+            putInStore(resId, res);
+            return res;
+        });
+    }
+
+    void putInStore(final String resId, final T res) {
+        if (store != null && res != null) {
+            store.put(cachePrefix + resId, res);
+        }
+    }
+
+    // the cached value, null if it's in neither tier; nothing is fetched or
+    // refreshed
+    @SuppressWarnings("unchecked")
+    public T peek(String resId) {
+        resId = normalizeId(resId);
+        try {
+            final Object cached = EHServerCache.get(cacheName, cachePrefix + resId);
+            if (cached != null) {
+                return refreshAhead ? ((MetadataStore.Entry<T>) cached).value : (T) cached;
+            }
+        } catch (IIIFException e) {
+            logger.error("peek, error getting object from cache", e);
+        }
+        if (store != null) {
+            final MetadataStore.Entry<T> entry = store.get(cachePrefix + resId);
+            if (entry != null) {
+                return entry.value;
+            }
+        }
+        return null;
+    }
+
+    // removes the value from both tiers, and the cached failure
+    public void invalidate(String resId) {
+        resId = normalizeId(resId);
+        EHServerCache.remove(cacheName, cachePrefix + resId);
+        NegativeCache.remove(getNegativeKey(resId));
+        if (store != null) {
+            store.remove(cachePrefix + resId);
+        }
+    }
+
+    // forgets the failures of the resources with an id starting with the prefix
+    public void invalidateFailures(final String resIdPrefix) {
+        NegativeCache.removeByPrefix(cachePrefix + normalizeId(resIdPrefix));
+    }
+
+    String getNegativeKey(final String resId) {
+        return cacheName + ":" + cachePrefix + resId;
+    }
+
+    // fetches the resource unless it failed recently, in which case the same
+    // error is thrown again
+    T getFromApiOrFailure(final String resId) throws IIIFException {
+        final String negativeKey = getNegativeKey(resId);
+        final IIIFException failure = NegativeCache.get(cacheName, negativeKey);
+        if (failure != null) {
+            logger.debug("{} failed recently, not fetching it again", negativeKey);
+            throw failure;
+        }
+        try {
+            return getFromApi(resId);
+        } catch (IIIFException e) {
+            NegativeCache.put(cacheName, negativeKey, e);
+            throw e;
+        }
+    }
+
     public T getFromApi(final String resId) throws IIIFException {
         return null;
     }
@@ -76,20 +191,22 @@ public class ConcurrentResourceService<T> {
     public T getSync(String resId) throws IIIFException {
         resId = normalizeId(resId);
         if (skipCache) {
-            return getFromApi(resId);
+            return getFromApiOrFailure(resId);
         }
 
+        CacheWarmer.touch(this, resId);
         T resT = getFromCache(resId);
         if (resT != null) {
             logger.debug("found cache for " + resId);
             return resT;
         }
-        resT = getFromApi(resId);
-        try {
-            EHServerCache.put(cacheName, resId, resT);
-        } catch (Exception e) {
-            logger.error("getSync, error adding to cache", e);
+        resT = getFromStore(resId);
+        if (resT != null) {
+            return resT;
         }
+        resT = getFromApiOrFailure(resId);
+        putInCache(resId, resT);
+        putInStore(resId, resT);
         return resT;
     }
 
@@ -124,7 +241,11 @@ public class ConcurrentResourceService<T> {
         resId = normalizeId(resId);
         T resT = null;
         if (!skipCache) {
+            CacheWarmer.touch(this, resId);
             resT = getFromCache(resId);
+            if (resT == null) {
+                resT = getFromStore(resId);
+            }
         }
         if (resT != null) {
             logger.debug("found cache for {}", resId);
@@ -142,18 +263,17 @@ public class ConcurrentResourceService<T> {
             return resFromList;
         }
         try {
-            resT = getFromApi(resId);
+            resT = getFromApiOrFailure(resId);
         } catch (IIIFException e) {
             res.completeExceptionally(e);
-            // this means that each failed fetch will not be saved and the next
-            // API call will trigger a new one... this could be optimized by
-            // doing
-            // that every, say 10mn, so that we don't do too many external calls
+            // the failure is kept in the negative cache so that the next calls
+            // don't trigger a new fetch until it expires
             futures.remove(resId);
             return res;
         }
         if (!skipCache) {
             putInCache(resId, resT);
+            putInStore(resId, resT);
         }
         res.complete(resT);
         futures.remove(resId);
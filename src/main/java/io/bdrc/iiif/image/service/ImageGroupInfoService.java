@@ -1,24 +1,28 @@
 package io.bdrc.iiif.image.service;
 
 import static io.bdrc.iiif.resolver.AppConstants.CACHEPREFIX_VI;
+import static io.bdrc.iiif.resolver.AppConstants.LDS_VOLUMES_BATCH_QUERY;
 import static io.bdrc.iiif.resolver.AppConstants.LDS_VOLUME_QUERY;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.jena.query.QuerySolution;
-import org.apache.jena.query.ResultSet;
-import org.apache.jena.riot.ResultSetMgr;
-import org.apache.jena.riot.resultset.ResultSetLang;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.core.MetadataStore;
 import io.bdrc.iiif.exceptions.IIIFException;
 import io.bdrc.iiif.resolver.ImageGroupInfo;
 
@@ -28,41 +32,122 @@ public class ImageGroupInfoService extends ConcurrentResourceService<ImageGroupI
 
     public static final ImageGroupInfoService Instance = new ImageGroupInfoService();
 
+    // maximum number of image groups in a batch query
+    public static final int BATCH_SIZE = 100;
+    static final Pattern BATCH_ID = Pattern.compile("bdr:[A-Za-z0-9_-]+");
+
+    // the lookups of the image groups a batch couldn't resolve
+    private static final ExecutorService batchService = Executors.newFixedThreadPool(8);
+
     ImageGroupInfoService() {
         super("imageGroupInfo", CACHEPREFIX_VI);
+        this.store = MetadataStore.get("imageGroupInfo", ImageGroupInfo::writeTo, ImageGroupInfo::readFrom);
+        this.refreshAhead = true;
     }
 
     @Override
     final public ImageGroupInfo getFromApi(final String volumeId) throws IIIFException {
         logger.info("fetch volume info on LDS for {}", volumeId);
-        final HttpClient httpClient = HttpClientBuilder.create().build(); // Use this instead
         final ImageGroupInfo resVolumeInfo;
         try {
             URIBuilder builder = new URIBuilder(LDS_VOLUME_QUERY);
             builder.setParameter("R_RES", volumeId);
             builder.setParameter("format", "json");
-            final HttpGet request = new HttpGet(builder.build());
             // we suppose that the volumeId is well formed, which is checked by the
             // Identifier constructor
-            final HttpResponse response = httpClient.execute(request);
-            int code = response.getStatusLine().getStatusCode();
-            if (code != 200) {
-                throw new IIIFException(500, 5000, "LDS lookup returned an error for volume " + volumeId, response.toString(), "");
-            }
-            final InputStream body = response.getEntity().getContent();
-            final ResultSet res = ResultSetMgr.read(body, ResultSetLang.SPARQLResultSetJSON);
-            if (!res.hasNext()) {
+            final List<Map<String, String>> res = LdsClient.getBindings(builder.build());
+            if (res.isEmpty()) {
                 throw new IIIFException(404, 5000, "cannot find image group " + volumeId + " in the database");
             }
-            final QuerySolution sol = res.next();
-            resVolumeInfo = new ImageGroupInfo(sol, volumeId);
-            if (res.hasNext()) {
+            if (res.size() > 1) {
                 throw new IIIFException(500, 5000, "more than one volume found in the database for " + volumeId + ", this shouldn't happen");
             }
+            resVolumeInfo = new ImageGroupInfo(res.get(0), volumeId);
         } catch (IOException | URISyntaxException ex) {
             throw new IIIFException(500, 5000, ex);
         }
         logger.info("found volume info: {}", resVolumeInfo);
         return resVolumeInfo;
     }
+
+    /**
+     * Gets the info of many image groups at once and puts it in the cache. The
+     * image groups that are not cached are looked up with one SPARQL query per
+     * BATCH_SIZE image groups when the sparqlEndpoint property is set, the
+     * others are looked up concurrently. The image groups that can't be found
+     * are not in the result.
+     */
+    public Map<String, ImageGroupInfo> getBatch(final Collection<String> volumeIds) {
+        final Map<String, ImageGroupInfo> res = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (String volumeId : volumeIds) {
+            volumeId = normalizeId(volumeId);
+            ImageGroupInfo igi = getFromCache(volumeId);
+            if (igi == null) {
+                igi = getFromStore(volumeId);
+            }
+            if (igi != null) {
+                res.put(volumeId, igi);
+            } else if (!missing.contains(volumeId)) {
+                missing.add(volumeId);
+            }
+        }
+        final String endpoint = Application.getProperty("sparqlEndpoint");
+        if (endpoint != null) {
+            for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+                try {
+                    final Map<String, ImageGroupInfo> batch = getBatchFromApi(endpoint,
+                            missing.subList(i, Math.min(i + BATCH_SIZE, missing.size())));
+                    for (Map.Entry<String, ImageGroupInfo> e : batch.entrySet()) {
+                        putInCache(e.getKey(), e.getValue());
+                        putInStore(e.getKey(), e.getValue());
+                        res.put(e.getKey(), e.getValue());
+                    }
+                } catch (IOException e) {
+                    logger.error("batch lookup of image groups failed", e);
+                }
+            }
+        }
+        final Map<String, CompletableFuture<ImageGroupInfo>> futures = new HashMap<>();
+        for (final String volumeId : missing) {
+            if (!res.containsKey(volumeId)) {
+                futures.put(volumeId, CompletableFuture.supplyAsync(() -> getAsync(volumeId).join(), batchService));
+            }
+        }
+        for (Map.Entry<String, CompletableFuture<ImageGroupInfo>> e : futures.entrySet()) {
+            try {
+                res.put(e.getKey(), e.getValue().join());
+            } catch (CompletionException ex) {
+                logger.error("could not get the info of image group {}", e.getKey(), ex.getCause());
+            }
+        }
+        return res;
+    }
+
+    Map<String, ImageGroupInfo> getBatchFromApi(final String endpoint, final List<String> volumeIds)
+            throws IOException {
+        final StringBuilder values = new StringBuilder();
+        for (String volumeId : volumeIds) {
+            // the ids are put in the query, the others are looked up one by one
+            if (BATCH_ID.matcher(volumeId).matches()) {
+                values.append(volumeId).append(' ');
+            }
+        }
+        final Map<String, ImageGroupInfo> res = new HashMap<>();
+        if (values.length() == 0) {
+            return res;
+        }
+        long deb = System.currentTimeMillis();
+        final List<Map<String, String>> rows = LdsClient.query(endpoint,
+                LDS_VOLUMES_BATCH_QUERY.replace("%VALUES%", values.toString()));
+        for (Map<String, String> row : rows) {
+            final String volumeId = normalizeId(row.get("ig"));
+            if (!res.containsKey(volumeId)) {
+                res.put(volumeId, new ImageGroupInfo(row, volumeId));
+            }
+        }
+        Application.logPerf("batch lookup of {} image groups found {} after {}", volumeIds.size(), res.size(),
+                System.currentTimeMillis() - deb);
+        return res;
+    }
 }
@@ -21,13 +21,14 @@ import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.bdrc.auth.AuthProps;
 import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.core.MetadataStore;
 import io.bdrc.iiif.exceptions.IIIFException;
 import io.bdrc.iiif.resolver.ImageInfo;
+import io.bdrc.iiif.resolver.ImageInfoList;
 import io.bdrc.libraries.GlobalHelpers;
 
 public class ImageInfoListService extends ConcurrentResourceService<List<ImageInfo>> {
@@ -37,16 +38,13 @@ public class ImageInfoListService extends ConcurrentResourceService<List<ImageIn
     final static String bucketName = "archive.tbrc.org";
     private static AmazonS3 s3Client = null;
     static MessageDigest md;
-    static private final ObjectMapper om;
     private static final Logger logger = LoggerFactory.getLogger(ImageInfoListService.class);
     public static final ImageInfoListService Instance = new ImageInfoListService();
 
     ImageInfoListService() {
         super("imageListInfo", CACHEPREFIX_IIL);
-    }
-
-    static {
-        om = new ObjectMapper();
+        this.store = MetadataStore.get("imageListInfo", ImageInfoList::writeTo, ImageInfoList::readFrom);
+        this.refreshAhead = true;
     }
 
     private static AmazonS3 getClient() {
@@ -100,10 +98,8 @@ public class ImageInfoListService extends ConcurrentResourceService<List<ImageIn
             final InputStream objectData = object.getObjectContent();
             try {
                 final GZIPInputStream gis = new GZIPInputStream(objectData);
-                final List<ImageInfo> imageList = om.readValue(gis, new TypeReference<List<ImageInfo>>() {
-                });
+                final ImageInfoList imageList = ImageInfoList.read(gis);
                 objectData.close();
-                imageList.removeIf(imageInfo -> imageInfo.filename.endsWith("json"));
                 return imageList;
             } catch (IOException e) {
                 throw new IIIFException(500, 5000, e);
@@ -111,12 +107,9 @@ public class ImageInfoListService extends ConcurrentResourceService<List<ImageIn
         case Application.DISK_SOURCE:
             try {
                 String rootDir = Application.getProperty("imageSourceDiskRootDir");
-                FileInputStream in = new FileInputStream(new File(rootDir + s3key));
-                final GZIPInputStream gis = new GZIPInputStream(in);
-                final List<ImageInfo> imageList = om.readValue(gis, new TypeReference<List<ImageInfo>>() {
-                });
-                imageList.removeIf(imageInfo -> imageInfo.filename.endsWith("json"));
-                return imageList;
+                try (FileInputStream in = new FileInputStream(new File(rootDir + s3key))) {
+                    return ImageInfoList.read(new GZIPInputStream(in));
+                }
             } catch (Exception e) {
                 throw new IIIFException(500, 5000, e);
             }
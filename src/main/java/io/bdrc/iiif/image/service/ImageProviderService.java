@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -18,10 +19,19 @@ import com.amazonaws.services.s3.model.S3Object;
 
 import io.bdrc.auth.AuthProps;
 import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.core.EHServerCache;
 import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.metrics.CacheMetrics;
 import io.bdrc.iiif.resolver.IdentifierInfo;
+import io.bdrc.iiif.resolver.ImageGroupInfo;
 import io.bdrc.libraries.GlobalHelpers;
 
+/**
+ * The original images, cached in iiif_img under a single key per S3 object:
+ * the prefix of the bucket (archive: or static:) followed by the S3 key. All
+ * the producers (image requests, thumbnails, archives) go through this
+ * service, so an image is fetched and stored once whatever the path.
+ */
 public class ImageProviderService extends ConcurrentResourceService<byte[]> {
 
     private static final ClientConfiguration config = new ClientConfiguration().withConnectionTimeout(3000).withMaxConnections(50)
@@ -34,6 +44,11 @@ public class ImageProviderService extends ConcurrentResourceService<byte[]> {
     public static final ImageProviderService InstanceArchive = new ImageProviderService(bucketNameArchive, "archive:");
     public String bucketName;
     private static AmazonS3ClientBuilder clientBuilder = null;
+    public static final int DEFAULT_MAX_LEGACY_MISSES = 10000;
+    // the legacy keys are looked up until this many lookups in a row found none
+    private static final int maxLegacyMisses = getMaxLegacyMisses();
+    private final AtomicInteger legacyMisses = new AtomicInteger();
+    private volatile boolean migrating;
     
     static {
         if ("s3".equals(AuthProps.getProperty("imageSourceType")))
@@ -44,6 +59,55 @@ public class ImageProviderService extends ConcurrentResourceService<byte[]> {
     ImageProviderService(final String bucketName, final String cachePrefix) {
         super("iiif_img", cachePrefix);
         this.bucketName = bucketName;
+        this.migrating = bucketNameArchive.equals(bucketName);
+    }
+
+    static int getMaxLegacyMisses() {
+        final String val = Application.getProperty("migrateImageKeysMaxMisses");
+        return val == null ? DEFAULT_MAX_LEGACY_MISSES : Integer.parseInt(val);
+    }
+
+    // the key of the image in iiif_img
+    public String getCacheKey(final String s3key) {
+        return cachePrefix + s3key;
+    }
+
+    // the image if it's cached, without fetching it
+    public byte[] getCached(final String s3key) {
+        return getFromCache(normalizeId(s3key));
+    }
+
+    /**
+     * The archives used to cache the images under the bare S3 key of the
+     * archive bucket. These entries are moved to the prefixed key when they
+     * are found, until the migrateImageKeys property is set to false or
+     * migrateImageKeysMaxMisses lookups in a row find no legacy entry, when
+     * the remaining ones are left to expire.
+     */
+    @Override
+    byte[] getFromCache(final String s3key) {
+        byte[] res = super.getFromCache(s3key);
+        if (res != null || !migrating || "false".equals(Application.getProperty("migrateImageKeys"))) {
+            return res;
+        }
+        try {
+            res = (byte[]) EHServerCache.get(cacheName, s3key);
+        } catch (IIIFException e) {
+            logger.error("getFromCache, error getting legacy entry from cache", e);
+        }
+        if (res == null) {
+            if (legacyMisses.incrementAndGet() >= maxLegacyMisses && migrating) {
+                migrating = false;
+                logger.info("no legacy key found in the last {} lookups, stopping the migration", maxLegacyMisses);
+            }
+            return null;
+        }
+        legacyMisses.set(0);
+        logger.debug("moving {} to its canonical key", s3key);
+        putInCache(s3key, res);
+        EHServerCache.remove(cacheName, s3key);
+        CacheMetrics.keyMigrated(cacheName);
+        return res;
     }
 
     public static AmazonS3 getClient() {
@@ -55,13 +119,20 @@ public class ImageProviderService extends ConcurrentResourceService<byte[]> {
     }
 
     public static String getKeyPrefix(final IdentifierInfo idf) {
-        String w_id = idf.igi.imageInstanceId;
+        if (idf.index != null) {
+            return idf.index.getKeyPrefix();
+        }
+        return getKeyPrefix(idf.igi);
+    }
+
+    public static String getKeyPrefix(final ImageGroupInfo igi) {
+        String w_id = igi.imageInstanceId;
         if (w_id.lastIndexOf('/') != -1) {
             w_id = w_id.substring(w_id.lastIndexOf('/') + 1);
         }
         String md5firsttwo = "";
         md5firsttwo = GlobalHelpers.getTwoLettersBucket(w_id);
-        String imageGroupId = ImageInfoListService.getS3ImageGroupId(idf.igi.imageGroup);
+        String imageGroupId = ImageInfoListService.getS3ImageGroupId(igi.imageGroup);
         return "Works/" + md5firsttwo + "/" + w_id + "/images/" + w_id + "-" + imageGroupId + "/";
     }
 
@@ -0,0 +1,116 @@
+package io.bdrc.iiif.image.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.digitalcollections.iiif.model.PropertyValue;
+import io.bdrc.iiif.auth.AuthServiceInfo;
+import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.core.EHServerCache;
+import io.bdrc.iiif.model.ImageApiProfile;
+import io.bdrc.iiif.model.TileInfo;
+
+/**
+ * Cache of the serialized info.json documents. The body of an info.json only
+ * depends on the identifier, the dimensions of the image and on whether the
+ * auth service must be embedded, so we keep the final bytes for each of these
+ * two variants and rebuild them only when the dimensions listed in the image
+ * list change. The Accept header only changes the response headers.
+ */
+public class InfoJsonCache {
+
+    private static final Logger log = LoggerFactory.getLogger(InfoJsonCache.class);
+
+    public static final String CACHE_NAME = "infoJson";
+    public static final String VARIANT_OPEN = ":open";
+    public static final String VARIANT_AUTH = ":auth";
+
+    public static final PropertyValue pngHint = new PropertyValue("png", "jpg");
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static class Entry {
+
+        public final byte[] body;
+        public final String etag;
+        final int width;
+        final int height;
+        final Integer size;
+
+        Entry(byte[] body, int width, int height, Integer size) {
+            this.body = body;
+            this.etag = "\"" + DigestUtils.md5DigestAsHex(body) + "\"";
+            this.width = width;
+            this.height = height;
+            this.size = size;
+        }
+
+        // the entry is valid as long as the image list gives the same dimensions
+        boolean matches(int width, int height, Integer size) {
+            if (this.width != width || this.height != height) {
+                return false;
+            }
+            return this.size == null ? size == null : this.size.equals(size);
+        }
+    }
+
+    /**
+     * Returns the serialized info.json of an image, building it if necessary.
+     * authService is null when the auth service must not be embedded in the
+     * document.
+     */
+    public static Entry get(final String identifier, final int width, final int height, final Integer size,
+            final AuthServiceInfo authService) throws JsonProcessingException {
+        final String key = identifier + (authService == null ? VARIANT_OPEN : VARIANT_AUTH);
+        Entry entry = EHServerCache.INFO_JSON.get(key);
+        if (entry != null && entry.matches(width, height, size)) {
+            return entry;
+        }
+        log.debug("building info.json for {}", key);
+        final ImageService info = buildInfo(identifier, width, height, size);
+        if (authService != null) {
+            info.addService(authService);
+        }
+        entry = new Entry(mapper.writeValueAsBytes(info), width, height, size);
+        EHServerCache.INFO_JSON.put(key, entry);
+        return entry;
+    }
+
+    public static ImageService buildInfo(final String identifier, final int width, final int height, final Integer size) {
+        final ImageService info = new ImageService(Application.getProperty("iiifserv_baseurl") + identifier);
+        info.setWidth(width);
+        info.setHeight(height);
+        ImageApiProfile profile = new ImageApiProfile();
+        profile.addFeature(ImageApiProfile.Feature.BASE_URI_REDIRECT, ImageApiProfile.Feature.CORS,
+                ImageApiProfile.Feature.JSONLD_MEDIA_TYPE, ImageApiProfile.Feature.PROFILE_LINK_HEADER,
+                ImageApiProfile.Feature.CANONICAL_LINK_HEADER, ImageApiProfile.Feature.REGION_BY_PCT,
+                ImageApiProfile.Feature.REGION_BY_PX, ImageApiProfile.Feature.REGION_SQUARE,
+                ImageApiProfile.Feature.ROTATION_BY_90S, ImageApiProfile.Feature.MIRRORING,
+                ImageApiProfile.Feature.SIZE_BY_CONFINED_WH, ImageApiProfile.Feature.SIZE_BY_DISTORTED_WH,
+                ImageApiProfile.Feature.SIZE_BY_H, ImageApiProfile.Feature.SIZE_BY_PCT,
+                ImageApiProfile.Feature.SIZE_BY_W, ImageApiProfile.Feature.SIZE_BY_WH);
+        info.addProfile(ImageApiProfile.LEVEL_ONE, profile);
+        TileInfo tile = new TileInfo(info.getWidth());
+        tile.setHeight(info.getHeight());
+        if (size == null || size < 1000000) {
+            tile.addScaleFactor(1);
+        } else {
+            tile.addScaleFactor(1, 2, 4);
+        }
+        info.addTile(tile);
+        if (pngOutput(identifier)) {
+            info.setPreferredFormats(pngHint);
+        }
+        return info;
+    }
+
+    public static boolean pngOutput(final String filename) {
+        final String ext = filename.substring(filename.length() - 4).toLowerCase();
+        return (ext.equals(".tif") || ext.equals("tiff"));
+    }
+
+}
@@ -0,0 +1,162 @@
+package io.bdrc.iiif.image.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.bdrc.iiif.core.Application;
+
+/**
+ * The http client used for all the requests to the dataserver (LDS): the
+ * connections are pooled and the requests have timeouts. SPARQL json results
+ * are read as a stream, without building a Jena result set.
+ */
+public class LdsClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(LdsClient.class);
+
+    public static final int DEFAULT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static CloseableHttpClient httpClient = null;
+
+    static synchronized CloseableHttpClient getHttpClient() {
+        if (httpClient == null) {
+            int timeout = DEFAULT_TIMEOUT_MS;
+            if (Application.getProperty("ldsTimeoutMs") != null) {
+                timeout = Integer.parseInt(Application.getProperty("ldsTimeoutMs"));
+            }
+            int maxConnections = DEFAULT_MAX_CONNECTIONS;
+            if (Application.getProperty("ldsMaxConnections") != null) {
+                maxConnections = Integer.parseInt(Application.getProperty("ldsMaxConnections"));
+            }
+            final PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+            cm.setMaxTotal(maxConnections);
+            cm.setDefaultMaxPerRoute(maxConnections);
+            final RequestConfig config = RequestConfig.custom().setConnectTimeout(timeout)
+                    .setConnectionRequestTimeout(timeout).setSocketTimeout(timeout).build();
+            httpClient = HttpClientBuilder.create().setConnectionManager(cm).setDefaultRequestConfig(config).build();
+            logger.info("LDS client created with {} connections and a {}ms timeout", maxConnections, timeout);
+        }
+        return httpClient;
+    }
+
+    // the response must be consumed by the caller
+    static HttpResponse execute(HttpUriRequest request) throws IOException {
+        final HttpResponse response = getHttpClient().execute(request);
+        final int code = response.getStatusLine().getStatusCode();
+        if (code != 200) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            throw new IOException("LDS returned " + code + " for " + request.getURI());
+        }
+        return response;
+    }
+
+    public static Model readModel(String url) throws IOException {
+        final HttpGet get = new HttpGet(url);
+        get.setHeader("Accept", "text/turtle");
+        final HttpResponse response = execute(get);
+        final Model m = ModelFactory.createDefaultModel();
+        try (InputStream in = response.getEntity().getContent()) {
+            RDFDataMgr.read(m, in, url, Lang.TURTLE);
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+        return m;
+    }
+
+    // rows of the result of an LDS table query
+    public static List<Map<String, String>> getBindings(URI uri) throws IOException {
+        final HttpGet get = new HttpGet(uri);
+        get.setHeader("Accept", "application/sparql-results+json");
+        return readBindings(execute(get));
+    }
+
+    // rows of the result of a query sent to a SPARQL endpoint
+    public static List<Map<String, String>> query(String endpoint, String query) throws IOException {
+        final HttpPost post = new HttpPost(endpoint);
+        post.setHeader("Accept", "application/sparql-results+json");
+        final List<NameValuePair> params = Collections.singletonList(new BasicNameValuePair("query", query));
+        post.setEntity(new UrlEncodedFormEntity(params, "UTF-8"));
+        return readBindings(execute(post));
+    }
+
+    private static List<Map<String, String>> readBindings(HttpResponse response) throws IOException {
+        try (InputStream in = response.getEntity().getContent()) {
+            return readBindings(in);
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+
+    /**
+     * Reads the bindings of a SPARQL json result: for each row, variable ->
+     * value of the term (the URI for resources, the lexical form for
+     * literals).
+     */
+    public static List<Map<String, String>> readBindings(InputStream in) throws IOException {
+        final List<Map<String, String>> res = new ArrayList<>();
+        try (JsonParser p = jsonFactory.createParser(in)) {
+            JsonToken t;
+            while ((t = p.nextToken()) != null) {
+                if (t != JsonToken.FIELD_NAME || !"bindings".equals(p.getCurrentName())) {
+                    continue;
+                }
+                if (p.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IOException("invalid SPARQL json result: bindings is not an array");
+                }
+                while (p.nextToken() == JsonToken.START_OBJECT) {
+                    final Map<String, String> row = new HashMap<>();
+                    while (p.nextToken() == JsonToken.FIELD_NAME) {
+                        final String var = p.getCurrentName();
+                        p.nextToken();
+                        String value = null;
+                        while (p.nextToken() == JsonToken.FIELD_NAME) {
+                            final String field = p.getCurrentName();
+                            p.nextToken();
+                            if ("value".equals(field)) {
+                                value = p.getText();
+                            } else {
+                                p.skipChildren();
+                            }
+                        }
+                        row.put(var, value);
+                    }
+                    res.add(row);
+                }
+                break;
+            }
+        }
+        return res;
+    }
+
+}
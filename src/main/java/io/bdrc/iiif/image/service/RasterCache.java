@@ -0,0 +1,334 @@
+package io.bdrc.iiif.image.service;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.exceptions.InvalidParametersException;
+import io.bdrc.iiif.model.DecodedImage;
+import io.bdrc.iiif.model.ImageApiProfile;
+import io.bdrc.iiif.model.ImageApiSelector;
+import io.bdrc.iiif.model.ImageReader_ICC;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Cache of the decoded images that are requested many times in a short time,
+ * typically by a deep zoom viewer asking for all the tiles of a page at
+ * different scales. Once an image has been read rasterCacheMinHits times
+ * within the last images read, the whole image is decoded once, at the
+ * smallest resolution of the reader covering the requested scale, and the
+ * following tiles are cropped from it and scaled as long as it covers their
+ * scale. At most two resolutions are kept for an image. The rasters are kept
+ * uncompressed on the heap, the least recently used images are evicted when
+ * their total size exceeds rasterCacheMaxMB.
+ */
+public class RasterCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RasterCache.class);
+
+    public static final String CACHE_NAME = "iiif_raster";
+    public static final long DEFAULT_MAX_MB = 256;
+    public static final int DEFAULT_MIN_HITS = 2;
+    static final int MAX_CANDIDATES = 1000;
+    static final int MAX_RASTERS = 2;
+
+    static class Raster {
+        final BufferedImage img;
+        // decoded width / native width
+        final double scale;
+        final long bytes;
+
+        Raster(BufferedImage img, double scale) {
+            this.img = img;
+            this.scale = scale;
+            final DataBuffer buf = img.getRaster().getDataBuffer();
+            this.bytes = (long) buf.getSize() * buf.getNumBanks() * DataBuffer.getDataTypeSize(buf.getDataType()) / 8;
+        }
+    }
+
+    static class Entry {
+        final Dimension nativeSize;
+        final ICC_Profile icc;
+        // by decreasing scale
+        final List<Raster> rasters = new ArrayList<>();
+        long bytes = 0;
+
+        Entry(Dimension nativeSize, ICC_Profile icc) {
+            this.nativeSize = nativeSize;
+            this.icc = icc;
+        }
+    }
+
+    static final boolean enabled = !"false".equals(Application.getProperty("rasterCache"));
+    static final long maxBytes = getLongProperty("rasterCacheMaxMB", DEFAULT_MAX_MB) * 1024 * 1024;
+    static final int minHits = (int) getLongProperty("rasterCacheMinHits", DEFAULT_MIN_HITS);
+
+    // identifier -> decoded rasters, in access order
+    private static final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static long totalBytes = 0;
+    private static final AtomicLong bytesGauge = new AtomicLong();
+    // identifier -> number of recent reads, for the images not cached yet
+    private static final Map<String, Integer> candidates = new LinkedHashMap<String, Integer>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+
+    static {
+        if ("true".equals(Application.getProperty("metricsEnabled"))) {
+            Metrics.gauge(CACHE_NAME + ".bytes", bytesGauge, AtomicLong::get);
+        }
+    }
+
+    static long getLongProperty(final String property, final long defaultValue) {
+        final String val = Application.getProperty(property);
+        return val == null ? defaultValue : Long.parseLong(val);
+    }
+
+    static void count(final String action) {
+        if ("true".equals(Application.getProperty("metricsEnabled"))) {
+            Metrics.counter(CACHE_NAME + ".cache", "action", action).increment();
+        }
+    }
+
+    static Rectangle resolveRegion(final ImageApiSelector selector, final Dimension nativeSize) throws InvalidParametersException {
+        try {
+            return selector.getRegion().resolve(nativeSize);
+        } catch (IIIFException e) {
+            throw new InvalidParametersException(e);
+        }
+    }
+
+    static Dimension resolveSize(final ImageApiSelector selector, final Rectangle region, final ImageApiProfile profile)
+            throws InvalidParametersException {
+        try {
+            return selector.getSize().resolve(new Dimension(region.width, region.height), profile);
+        } catch (IIIFException e) {
+            throw new InvalidParametersException(e);
+        }
+    }
+
+    /**
+     * The decoded image for the selector, cropped from a cached raster, or null
+     * if no raster of the image covers the requested scale. The reader of the
+     * result has no ImageReader, only the ICC profile of the image.
+     */
+    public static Object[] get(final String identifier, final ImageApiSelector selector, final ImageApiProfile profile)
+            throws InvalidParametersException {
+        if (!enabled || (selector.getRotation().getRotation() % 90) != 0) {
+            return null;
+        }
+        final Entry e;
+        synchronized (entries) {
+            e = entries.get(identifier);
+        }
+        if (e == null) {
+            count("miss");
+            return null;
+        }
+        final Rectangle region = resolveRegion(selector, e.nativeSize);
+        final Dimension targetSize = resolveSize(selector, region, profile);
+        final double targetScale = targetSize.width / region.getWidth();
+        Raster raster = null;
+        synchronized (entries) {
+            for (Raster r : e.rasters) {
+                if (r.scale >= targetScale) {
+                    raster = r;
+                }
+            }
+        }
+        if (raster == null) {
+            count("miss");
+            return null;
+        }
+        count("hit");
+        final DecodedImage dimg = new DecodedImage(crop(raster, region), targetSize, (int) selector.getRotation().getRotation());
+        return new Object[] { dimg, new ImageReader_ICC(null, e.icc) };
+    }
+
+    // true when the image has been read often enough to be worth caching
+    public static boolean isHot(final String identifier) {
+        if (!enabled) {
+            return false;
+        }
+        synchronized (candidates) {
+            final int hits = candidates.getOrDefault(identifier, 0) + 1;
+            if (hits >= minHits) {
+                candidates.remove(identifier);
+                return true;
+            }
+            candidates.put(identifier, hits);
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the whole image with the reader, keeps it in the cache and
+     * returns the decoded image for the selector cropped from it. Returns null
+     * if the image could not be decoded.
+     */
+    public static Object[] decode(final ImageReader_ICC imgReader, final String identifier, final ImageApiSelector selector,
+            final ImageApiProfile profile) throws InvalidParametersException {
+        if ((selector.getRotation().getRotation() % 90) != 0) {
+            return null;
+        }
+        final long deb = System.currentTimeMillis();
+        final ImageReader reader = imgReader.getReader();
+        final Raster raster;
+        final Dimension nativeSize;
+        final Rectangle region;
+        final Dimension targetSize;
+        try {
+            nativeSize = new Dimension(reader.getWidth(0), reader.getHeight(0));
+            region = resolveRegion(selector, nativeSize);
+            targetSize = resolveSize(selector, region, profile);
+            // same choice of resolution as ReadImageProcess.readImage
+            final double targetScale = targetSize.width / region.getWidth();
+            double scale = 1.0;
+            int imageIndex = 0;
+            for (int idx = 0; idx < reader.getNumImages(true); idx++) {
+                final double factor = (double) reader.getWidth(idx) / nativeSize.width;
+                if (factor < targetScale) {
+                    continue;
+                }
+                if (Math.abs(targetScale - factor) < Math.abs(targetScale - scale)) {
+                    scale = factor;
+                    imageIndex = idx;
+                }
+            }
+            // a raster that can't be cached isn't worth a full frame decode,
+            // the region is decoded as usual
+            final long estimate = (long) reader.getWidth(imageIndex) * reader.getHeight(imageIndex)
+                    * getBytesPerPixel(reader, imageIndex);
+            if (estimate > getMaxRasterBytes()) {
+                log.debug("raster of {} would be too large for the cache: {} bytes", identifier, estimate);
+                count("too_large");
+                return null;
+            }
+            final BufferedImage img = reader.read(imageIndex, reader.getDefaultReadParam());
+            raster = new Raster(img, (double) img.getWidth() / nativeSize.width);
+        } catch (IOException | RuntimeException ex) {
+            log.error("could not decode {} for the raster cache", identifier, ex);
+            return null;
+        }
+        Application.logPerf("decoded the raster of {} in {} ms", identifier, System.currentTimeMillis() - deb);
+        put(identifier, nativeSize, imgReader.getIcc(), raster);
+        final DecodedImage dimg = new DecodedImage(crop(raster, region), targetSize, (int) selector.getRotation().getRotation());
+        return new Object[] { dimg, imgReader };
+    }
+
+    // a raster taking a large part of the cache would evict all the others
+    static long getMaxRasterBytes() {
+        return maxBytes / 4;
+    }
+
+    // from the type the reader decodes to, 4 if it doesn't tell
+    static int getBytesPerPixel(final ImageReader reader, final int imageIndex) {
+        try {
+            final ImageTypeSpecifier type = reader.getRawImageType(imageIndex);
+            if (type != null) {
+                return Math.max(1, (type.getColorModel().getPixelSize() + 7) / 8);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("no raw image type for image {}", imageIndex, e);
+        }
+        return 4;
+    }
+
+    static void put(final String identifier, final Dimension nativeSize, final ICC_Profile icc, final Raster raster) {
+        if (raster.bytes > getMaxRasterBytes()) {
+            log.debug("raster of {} is too large for the cache: {} bytes", identifier, raster.bytes);
+            return;
+        }
+        synchronized (entries) {
+            Entry e = entries.get(identifier);
+            if (e == null) {
+                e = new Entry(nativeSize, icc);
+                entries.put(identifier, e);
+            }
+            e.rasters.add(raster);
+            e.bytes += raster.bytes;
+            totalBytes += raster.bytes;
+            e.rasters.sort((a, b) -> Double.compare(b.scale, a.scale));
+            // the smallest resolutions are dropped first, the largest covers
+            // more requests
+            while (e.rasters.size() > MAX_RASTERS) {
+                final Raster dropped = e.rasters.remove(e.rasters.size() - 1);
+                e.bytes -= dropped.bytes;
+                totalBytes -= dropped.bytes;
+            }
+            final Iterator<Entry> it = entries.values().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                final Entry eldest = it.next();
+                if (eldest == e) {
+                    continue;
+                }
+                totalBytes -= eldest.bytes;
+                it.remove();
+                count("evicted");
+            }
+            bytesGauge.set(totalBytes);
+        }
+        count("put");
+    }
+
+    // a copy of the region of the raster, so that the image written doesn't
+    // depend on the shared raster
+    static BufferedImage crop(final Raster raster, final Rectangle region) {
+        final BufferedImage img = raster.img;
+        final int x = Math.min((int) Math.floor(region.x * raster.scale), img.getWidth() - 1);
+        final int y = Math.min((int) Math.floor(region.y * raster.scale), img.getHeight() - 1);
+        final int w = Math.max(1, Math.min((int) Math.ceil(region.width * raster.scale), img.getWidth() - x));
+        final int h = Math.max(1, Math.min((int) Math.ceil(region.height * raster.scale), img.getHeight() - y));
+        final WritableRaster dest = img.getRaster().createCompatibleWritableRaster(x, y, w, h);
+        img.copyData(dest);
+        return new BufferedImage(img.getColorModel(), dest.createWritableTranslatedChild(0, 0), img.isAlphaPremultiplied(), null);
+    }
+
+    public static void removeByPrefix(final String prefix) {
+        synchronized (entries) {
+            final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, Entry> e = it.next();
+                if (e.getKey().startsWith(prefix)) {
+                    totalBytes -= e.getValue().bytes;
+                    it.remove();
+                }
+            }
+            bytesGauge.set(totalBytes);
+        }
+    }
+
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+            totalBytes = 0;
+            bytesGauge.set(0);
+        }
+        synchronized (candidates) {
+            candidates.clear();
+        }
+    }
+
+}
@@ -135,7 +135,6 @@ public class ReadImageProcess {
      **/
     private static ImageReader_ICC getReader(String identifier,boolean failover) throws UnsupportedFormatException, IOException, IIIFException {
         long deb = System.currentTimeMillis();
-        ICC_Profile icc = null;
         final String s3key;
         String ext = "";
         final ImageProviderService service;
@@ -161,6 +160,18 @@ public class ReadImageProcess {
         } catch (InterruptedException | ExecutionException e) {
             throw new IIIFException(404, 5000, e);
         }
+        ImageReader_ICC res = getReader(bytes, ext, failover);
+        Application.logPerf("Image service return reader at {} ms {}", System.currentTimeMillis() - deb, identifier);
+        return res;
+    }
+
+    /**
+     * Obtain a {@link ImageReader} for the bytes of an original image, ext being
+     * the extension of its file name
+     **/
+    public static ImageReader_ICC getReader(final byte[] bytes, final String ext, final boolean failover)
+            throws UnsupportedFormatException, IOException {
+        ICC_Profile icc = null;
         ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
         ImageReader reader = null;
         if (ext.equals("jpg")) {
@@ -190,15 +201,34 @@ public class ReadImageProcess {
             }
         }
         Application.logPerf("S3 object IIIS READER >> {}", reader);
-        Application.logPerf("Image service return reader at {} ms {}", System.currentTimeMillis() - deb, identifier);
         return new ImageReader_ICC(reader, icc);
     }
 
     public static Object[] readImage(String identifier, ImageApiSelector selector, ImageApiProfile profile, boolean failover)
             throws IOException, UnsupportedFormatException, InvalidParametersException, ImageReadException, IIIFException {
+        final Object[] cached = RasterCache.get(identifier, selector, profile);
+        if (cached != null) {
+            return cached;
+        }
+        final ImageReader_ICC imgReader = getReader(identifier, failover);
+        if (RasterCache.isHot(identifier)) {
+            final Object[] decoded = RasterCache.decode(imgReader, identifier, selector, profile);
+            if (decoded != null) {
+                return decoded;
+            }
+        }
+        return readImage(imgReader, identifier, selector, profile);
+    }
+
+    /**
+     * Same as {@link #readImage(String, ImageApiSelector, ImageApiProfile, boolean)}
+     * with a reader already obtained, for instance through
+     * {@link #getReader(byte[], String, boolean)}
+     **/
+    public static Object[] readImage(ImageReader_ICC imgReader, String identifier, ImageApiSelector selector, ImageApiProfile profile)
+            throws IOException, UnsupportedFormatException, InvalidParametersException, ImageReadException, IIIFException {
         long deb = System.currentTimeMillis();
         Object[] obj=new Object[2];
-        ImageReader_ICC imgReader=getReader(identifier,failover);
         Application.logPerf("Entering readImage for creating DecodedImage");
         if ((selector.getRotation().getRotation() % 90) != 0) {
             log.error("Rotation is not a multiple of 90 degrees for selector {}", selector.toString(), "");
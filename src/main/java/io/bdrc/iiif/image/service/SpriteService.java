@@ -0,0 +1,260 @@
+package io.bdrc.iiif.image.service;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.bdrc.iiif.core.Application;
+import io.bdrc.iiif.core.EHServerCache;
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.model.ImageApiProfile.Format;
+import io.bdrc.iiif.model.ImageApiProfile.Quality;
+import io.bdrc.iiif.model.ImageApiSelector;
+import io.bdrc.iiif.resolver.IdentifierInfo;
+import io.bdrc.iiif.resolver.ImageInfo;
+
+/**
+ * Builds sprites (contact sheets) of the images of an image group: the images
+ * of a chunk of CHUNK_SIZE pages are rendered in a grid of CELL_SIZE pixels
+ * cells, in the order of the image list, with a json map giving the position of
+ * each image in the sprite. Sprites are built in the background and kept in the
+ * iiif_sprite persistent cache. A sprite with images that couldn't be rendered
+ * is only kept in memory for spriteRetryS seconds (60 by default), it's built
+ * again by the first request after that. At most spriteMaxPartials (100 by
+ * default) of these are kept.
+ */
+public class SpriteService {
+
+    private static final Logger log = LoggerFactory.getLogger(SpriteService.class);
+
+    public static final int CHUNK_SIZE = 100;
+    public static final int CELL_SIZE = 100;
+    public static final int COLUMNS = 10;
+
+    public static final String IMG_SUFFIX = ":jpg";
+    public static final String MAP_SUFFIX = ":json";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // few sprites are built at the same time, their images are rendered on the
+    // thumbnail pool
+    static final ExecutorService service = Executors.newFixedThreadPool(2);
+
+    public static final Map<String, Future<?>> jobs = new ConcurrentHashMap<>();
+
+    public static final long DEFAULT_RETRY_S = 60;
+
+    static class Partial {
+        final byte[] sprite;
+        final byte[] map;
+        final long expires;
+
+        Partial(byte[] sprite, byte[] map, long expires) {
+            this.sprite = sprite;
+            this.map = map;
+            this.expires = expires;
+        }
+    }
+
+    public static final int DEFAULT_MAX_PARTIALS = 100;
+    static final int maxPartials = getMaxPartials();
+
+    // the sprites with missing images, by key, the least recently used ones
+    // are evicted past spriteMaxPartials
+    static final Map<String, Partial> partials = Collections.synchronizedMap(new LinkedHashMap<String, Partial>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Partial> eldest) {
+            return size() > maxPartials;
+        }
+    });
+
+    static int getMaxPartials() {
+        final String val = Application.getProperty("spriteMaxPartials");
+        return val == null ? DEFAULT_MAX_PARTIALS : Integer.parseInt(val);
+    }
+
+    public static long getRetryMs() {
+        final String val = Application.getProperty("spriteRetryS");
+        return val == null ? DEFAULT_RETRY_S * 1000 : Long.parseLong(val) * 1000;
+    }
+
+    public static String getKey(final IdentifierInfo idi, final int chunk) {
+        return idi.volumeId + ":" + chunk;
+    }
+
+    public static int getNbChunks(final IdentifierInfo idi) {
+        return (idi.ili.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    public static byte[] getSprite(final String key) {
+        final byte[] res = EHServerCache.IIIF_SPRITE.get(key + IMG_SUFFIX);
+        if (res != null) {
+            return res;
+        }
+        final Partial partial = getPartial(key);
+        return partial == null ? null : partial.sprite;
+    }
+
+    public static byte[] getMap(final String key) {
+        final byte[] res = EHServerCache.IIIF_SPRITE.get(key + MAP_SUFFIX);
+        if (res != null) {
+            return res;
+        }
+        final Partial partial = getPartial(key);
+        return partial == null ? null : partial.map;
+    }
+
+    // false for a sprite with missing images
+    public static boolean isComplete(final String key) {
+        return EHServerCache.IIIF_SPRITE.containsKey(key + MAP_SUFFIX);
+    }
+
+    static Partial getPartial(final String key) {
+        final Partial partial = partials.get(key);
+        if (partial != null && partial.expires < System.currentTimeMillis()) {
+            partials.remove(key, partial);
+            return null;
+        }
+        return partial;
+    }
+
+    public static void remove(final String key) {
+        EHServerCache.remove("iiif_sprite", key + IMG_SUFFIX);
+        EHServerCache.remove("iiif_sprite", key + MAP_SUFFIX);
+        partials.remove(key);
+    }
+
+    static void putPartial(final String key, final Partial partial) {
+        final long now = System.currentTimeMillis();
+        synchronized (partials) {
+            partials.values().removeIf(p -> p.expires < now);
+            partials.put(key, partial);
+        }
+    }
+
+    public static void clearPartials() {
+        partials.clear();
+    }
+
+    // starts building the sprite if it's not already built or being built
+    public static void ensureSprite(final IdentifierInfo idi, final int chunk) {
+        final String key = getKey(idi, chunk);
+        if (EHServerCache.IIIF_SPRITE.containsKey(key + MAP_SUFFIX) || getPartial(key) != null) {
+            return;
+        }
+        jobs.computeIfAbsent(key, k -> service.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    build(idi, chunk, key);
+                } catch (Exception e) {
+                    log.error("could not build sprite {}", key, e);
+                } finally {
+                    jobs.remove(key);
+                }
+                return null;
+            }
+        }));
+    }
+
+    static void build(final IdentifierInfo idi, final int chunk, final String key) throws IIIFException, IOException {
+        long deb = System.currentTimeMillis();
+        final List<ImageInfo> ili = idi.ili;
+        final int start = chunk * CHUNK_SIZE;
+        final int end = Math.min(start + CHUNK_SIZE, ili.size());
+        final List<Future<BufferedImage>> renders = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            final String filename = ili.get(i).filename;
+            final ImageApiSelector selector = new ImageApiSelector();
+            selector.setIdentifier(idi.volumeId + "::" + filename);
+            selector.setRegion("full");
+            selector.setSize("!" + CELL_SIZE + "," + CELL_SIZE);
+            selector.setRotation("0");
+            selector.setQuality(Quality.DEFAULT);
+            selector.setFormat(Format.JPG);
+            renders.add(ThumbnailService.service.submit(new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() throws Exception {
+                    return ThumbnailService.decode(idi, filename, selector);
+                }
+            }));
+        }
+        final int rows = (renders.size() + COLUMNS - 1) / COLUMNS;
+        final BufferedImage sprite = new BufferedImage(COLUMNS * CELL_SIZE, rows * CELL_SIZE, BufferedImage.TYPE_3BYTE_BGR);
+        final Graphics2D g2d = sprite.createGraphics();
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(0, 0, sprite.getWidth(), sprite.getHeight());
+        final List<Map<String, Object>> images = new ArrayList<>();
+        int failed = 0;
+        for (int i = 0; i < renders.size(); i++) {
+            final Map<String, Object> position = new LinkedHashMap<>();
+            position.put("filename", ili.get(start + i).filename);
+            BufferedImage img = null;
+            try {
+                img = renders.get(i).get();
+            } catch (Exception e) {
+                log.error("could not render {} for sprite {}", ili.get(start + i).filename, key, e);
+            }
+            if (img == null) {
+                failed++;
+            }
+            if (img != null) {
+                // images are centered in their cell
+                final int x = (i % COLUMNS) * CELL_SIZE + (CELL_SIZE - img.getWidth()) / 2;
+                final int y = (i / COLUMNS) * CELL_SIZE + (CELL_SIZE - img.getHeight()) / 2;
+                g2d.drawImage(img, x, y, null);
+                position.put("x", x);
+                position.put("y", y);
+                position.put("w", img.getWidth());
+                position.put("h", img.getHeight());
+            }
+            images.add(position);
+        }
+        g2d.dispose();
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("imageGroup", idi.volumeId);
+        map.put("chunk", chunk);
+        map.put("chunks", getNbChunks(idi));
+        map.put("firstImage", start + 1);
+        map.put("cellSize", CELL_SIZE);
+        map.put("columns", COLUMNS);
+        map.put("width", sprite.getWidth());
+        map.put("height", sprite.getHeight());
+        map.put("images", images);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(sprite, "jpg", baos);
+        if (failed > 0) {
+            // not persisted so that the missing images are rendered again soon
+            log.warn("{} images missing in sprite {}, keeping it for {} ms", failed, key, getRetryMs());
+            putPartial(key, new Partial(baos.toByteArray(), mapper.writeValueAsBytes(map), System.currentTimeMillis() + getRetryMs()));
+            return;
+        }
+        partials.remove(key);
+        EHServerCache.IIIF_SPRITE.put(key + IMG_SUFFIX, baos.toByteArray());
+        // the map is written last, its presence means the sprite is complete
+        EHServerCache.IIIF_SPRITE.put(key + MAP_SUFFIX, mapper.writeValueAsBytes(map));
+        Application.logPerf("sprite {} built in {} ms", key, System.currentTimeMillis() - deb);
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.bdrc.iiif.image.service;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.imgscalr.Scalr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.model.DecodedImage;
+import io.bdrc.iiif.model.ImageApiProfile;
+import io.bdrc.iiif.model.ImageApiSelector;
+import io.bdrc.iiif.model.ImageReader_ICC;
+import io.bdrc.iiif.resolver.IdentifierInfo;
+
+/**
+ * Renders small versions of the images of an image group in parallel, for the
+ * batch endpoints. The image group is resolved once by the caller, the images
+ * are then only referenced by their file name.
+ */
+public class ThumbnailService {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+
+    // rendering is CPU bound, the fetch of the originals is the only wait
+    public static final ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+
+    public static Future<byte[]> submit(final IdentifierInfo idi, final String filename, final ImageApiSelector selector) {
+        return service.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return render(idi, filename, selector);
+            }
+        });
+    }
+
+    private static byte[] fetch(final IdentifierInfo idi, final String filename) throws IIIFException {
+        try {
+            return ImageProviderService.InstanceArchive.getAsync(ImageProviderService.getKeyPrefix(idi) + filename).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IIIFException(404, 5000, e);
+        }
+    }
+
+    /**
+     * Returns the image decoded and scaled according to the selector (rotation and
+     * quality are ignored), for callers composing several images together
+     */
+    public static BufferedImage decode(final IdentifierInfo idi, final String filename, final ImageApiSelector selector)
+            throws IIIFException {
+        final byte[] bytes = fetch(idi, filename);
+        final String ext = filename.substring(filename.lastIndexOf(".") + 1);
+        try {
+            return decode(bytes, ext, selector, false);
+        } catch (Exception e) {
+            log.error("could not decode {} with the default reader, trying failover: {}", filename, e.getMessage());
+            try {
+                return decode(bytes, ext, selector, true);
+            } catch (Exception ex) {
+                throw new IIIFException(500, 5000, ex);
+            }
+        }
+    }
+
+    private static BufferedImage decode(final byte[] bytes, final String ext, final ImageApiSelector selector, final boolean failover)
+            throws Exception {
+        final ImageReader_ICC imgReader = ReadImageProcess.getReader(bytes, ext, failover);
+        try {
+            final Object[] obj = ReadImageProcess.readImage(imgReader, selector.getIdentifier(), selector, ImageApiProfile.LEVEL_TWO);
+            final DecodedImage decImg = (DecodedImage) obj[0];
+            if (decImg == null) {
+                throw new IIIFException(500, 5000, "could not decode " + selector.getIdentifier());
+            }
+            final BufferedImage img = decImg.getImg();
+            final Dimension target = decImg.getTargetSize();
+            if (img.getWidth() == target.width && img.getHeight() == target.height) {
+                return img;
+            }
+            return Scalr.resize(img, Scalr.Method.BALANCED, Scalr.Mode.FIT_EXACT, target.width, target.height);
+        } finally {
+            imgReader.getReader().dispose();
+        }
+    }
+
+    public static byte[] render(final IdentifierInfo idi, final String filename, final ImageApiSelector selector) throws IIIFException {
+        final byte[] bytes = fetch(idi, filename);
+        final String ext = filename.substring(filename.lastIndexOf(".") + 1);
+        try {
+            return render(bytes, ext, selector, false);
+        } catch (Exception e) {
+            log.error("could not render {} with the default reader, trying failover: {}", filename, e.getMessage());
+            try {
+                return render(bytes, ext, selector, true);
+            } catch (Exception ex) {
+                throw new IIIFException(500, 5000, ex);
+            }
+        }
+    }
+
+    private static byte[] render(final byte[] bytes, final String ext, final ImageApiSelector selector, final boolean failover)
+            throws Exception {
+        final ImageApiProfile profile = ImageApiProfile.LEVEL_TWO;
+        final ImageReader_ICC imgReader = ReadImageProcess.getReader(bytes, ext, failover);
+        try {
+            final Object[] obj = ReadImageProcess.readImage(imgReader, selector.getIdentifier(), selector, profile);
+            final DecodedImage decImg = (DecodedImage) obj[0];
+            if (decImg == null) {
+                throw new IIIFException(500, 5000, "could not decode " + selector.getIdentifier());
+            }
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            WriteImageProcess.processImage(decImg, selector.getIdentifier(), selector, profile, os, imgReader);
+            return os.toByteArray();
+        } finally {
+            imgReader.getReader().dispose();
+        }
+    }
+
+}
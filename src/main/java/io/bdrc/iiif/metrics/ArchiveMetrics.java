@@ -0,0 +1,48 @@
+package io.bdrc.iiif.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.bdrc.iiif.core.Application;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+public class ArchiveMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(ArchiveMetrics.class);
+
+    public final static String JOBS_QUEUED = "archive.jobs.queued";
+    public final static String JOBS_RUNNING = "archive.jobs.running";
+    public final static String JOBS = "archive.jobs";
+    public final static String JOBS_DURATION = "archive.jobs.duration";
+    public final static String PAGES = "archive.pages";
+
+    static boolean enabled() {
+        return "true".equals(Application.getProperty("metricsEnabled"));
+    }
+
+    public static void registerGauges(Supplier<Number> queued, Supplier<Number> running) {
+        if (enabled()) {
+            Gauge.builder(JOBS_QUEUED, queued).register(Metrics.globalRegistry);
+            Gauge.builder(JOBS_RUNNING, running).register(Metrics.globalRegistry);
+            log.debug("Registered archive jobs gauges");
+        }
+    }
+
+    public static void jobFinished(String type, String state, long durationMs) {
+        if (enabled()) {
+            Metrics.counter(JOBS, "type", type, "state", state).increment();
+            Metrics.timer(JOBS_DURATION, "type", type).record(durationMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static void pageDone(String type) {
+        if (enabled()) {
+            Metrics.counter(PAGES, "type", type).increment();
+        }
+    }
+
+}
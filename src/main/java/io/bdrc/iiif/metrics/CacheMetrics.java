@@ -40,6 +40,13 @@ public class CacheMetrics {
         }
     }
 
+    // an image found under its legacy key and moved to the canonical one
+    public static void keyMigrated(String cacheName) {
+        if ("true".equals(Application.getProperty("metricsEnabled"))) {
+            Metrics.counter(cacheName + ".cache", "action", "migrated").increment();
+        }
+    }
+
     public static void updateIfDiskCache(String cacheName) {
         Map<String, TierStatistics> stats = EHServerCache.getTierStatistics(cacheName);
         if (stats != null) {
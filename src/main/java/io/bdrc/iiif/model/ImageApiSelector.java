@@ -128,6 +128,17 @@ public class ImageApiSelector {
      *                                                                   region
      */
     public String getCanonicalForm(Dimension nativeSize, ImageApiProfile profile, Quality defaultQuality) throws IIIFException {
+        return getCanonicalForm(identifier, nativeSize, profile, defaultQuality);
+    }
+
+    /**
+     * Same as {@link #getCanonicalForm(Dimension, ImageApiProfile, Quality)} but
+     * using the given identifier instead of the one of the request, so that
+     * requests made with the different identifier forms share the same canonical
+     * form.
+     */
+    public String getCanonicalForm(String identifier, Dimension nativeSize, ImageApiProfile profile, Quality defaultQuality)
+            throws IIIFException {
         Dimension scaleReference = nativeSize;
         Rectangle2D canonicalRegion = RegionRequest.fromString(region.getCanonicalForm(nativeSize)).getRegion();
         if (canonicalRegion != null) {
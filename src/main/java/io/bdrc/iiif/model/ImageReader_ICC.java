@@ -23,4 +23,11 @@ public class ImageReader_ICC {
         return icc;
     }
 
+    // the reader is null when the image comes from the raster cache
+    public void dispose() {
+        if (reader != null) {
+            reader.dispose();
+        }
+    }
+
 }
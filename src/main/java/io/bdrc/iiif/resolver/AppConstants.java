@@ -31,6 +31,26 @@ public class AppConstants {
     public static final String LDS_VOLUME_QUERY = LDS_QUERYPREFIX + "query/table/IIIFPres_volumeInfo";
     public static final String LDS_VOLUME_OUTLINE_QUERY = LDS_QUERYPREFIX + "query/graph/IIIFPres_volumeOutline";
 
+    // same variables as IIIFPres_volumeInfo, for many image groups at once,
+    // sent to the sparqlEndpoint
+    public static final String LDS_VOLUMES_BATCH_QUERY = "PREFIX : <" + BDO + ">\n"
+            + "PREFIX adm: <" + ADM + ">\n"
+            + "PREFIX bdr: <" + BDR + ">\n"
+            + "SELECT ?ig ?access ?license ?status ?instanceId ?iinstanceId ?ric ?volumeNumber ?pagesIntroTbrc ?iiifManifest\n"
+            + "WHERE {\n"
+            + "  VALUES ?ig { %VALUES%}\n"
+            + "  ?ig :volumeOf ?iinstanceId .\n"
+            + "  ?iinstanceId :instanceReproductionOf ?instanceId .\n"
+            + "  ?iinstanceAdm adm:adminAbout ?iinstanceId ;\n"
+            + "                adm:access ?access ;\n"
+            + "                adm:license ?license ;\n"
+            + "                adm:status ?status .\n"
+            + "  OPTIONAL { ?iinstanceAdm adm:restrictedInChina ?ric }\n"
+            + "  OPTIONAL { ?ig :volumeNumber ?volumeNumber }\n"
+            + "  OPTIONAL { ?ig :volumePagesTbrcIntro ?pagesIntroTbrc }\n"
+            + "  OPTIONAL { ?ig :hasIIIFManifest ?iiifManifest }\n"
+            + "}";
+
     public static final int FAIRUSE_PAGES_S = 20;
     public static final int FAIRUSE_PAGES_E = 20;
 
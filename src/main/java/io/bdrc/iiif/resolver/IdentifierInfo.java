@@ -2,7 +2,6 @@ package io.bdrc.iiif.resolver;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
@@ -10,6 +9,7 @@ import org.apache.http.client.ClientProtocolException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -31,7 +31,8 @@ public class IdentifierInfo {
     public boolean accessibleInFairUse = false;
     public ImageGroupInfo igi = null;
     public List<ImageInfo> ili = null;
-    public HashMap<String, ImageInfo> imgMap = null;
+    @JsonIgnore
+    public ImageGroupIndex index = null;
     public Integer imageIndex = null;
     public String computedImageName = null;
 
@@ -48,32 +49,41 @@ public class IdentifierInfo {
             this.igi = ImageGroupInfoService.Instance.getAsync(this.volumeId).get();
             this.ili = ImageInfoListService.Instance
                     .getAsync(igi.imageInstanceId.substring(AppConstants.BDR_len), igi.imageGroup).get();
-            imgMap = buildImageMap(ili);
-
+            index = ImageGroupIndex.get(igi, ili);
         } catch (InterruptedException | ExecutionException e) {
             throw new IIIFException(404, 5000, e);
         }
-        if (isFairUse() || AppConstants.IGSI.equals(prefix)) {
-            if (isFairUse()) {
-                this.igi.initAccessibleInFairUse(this.ili);
-                this.accessibleInFairUse = this.igi.isAccessibleInFairUse(this.imageId);
-            }
-            if (AppConstants.IGSI.equals(prefix)) {
-                computeImageName(this.ili);
-            }
+        if (isFairUse()) {
+            this.accessibleInFairUse = index.isAccessibleInFairUse(this.imageId);
         }
-    }
-
-    private HashMap<String, ImageInfo> buildImageMap(List<ImageInfo> inf) {
-        HashMap<String, ImageInfo> map = new HashMap<>();
-        for (ImageInfo imf : inf) {
-            map.put(imf.filename, imf);
+        if (AppConstants.IGSI.equals(prefix)) {
+            computeImageName(this.ili);
         }
-        return map;
     }
 
+    // allocates an ImageInfo, the lookups should use indexOf and the index
     public ImageInfo getImageInfo(String filename) {
-        return imgMap.get(filename);
+        final int i = index.indexOf(filename);
+        return i < 0 ? null : ili.get(i);
+    }
+
+    // the info of the requested image, whatever the form of the identifier
+    public ImageInfo getImageInfo() {
+        return getImageInfo(getImageName());
+    }
+
+    public String getImageName() {
+        return imageName == null ? computedImageName : imageName;
+    }
+
+    // index of the image in the image list, -1 if it's not in it
+    public int indexOf(String filename) {
+        return index.indexOf(filename);
+    }
+
+    // index of the requested image, -1 if it's not in the image list
+    public int getImageIndex() {
+        return index.indexOf(getImageName());
     }
 
     public boolean isFairUse() {
@@ -81,6 +91,12 @@ public class IdentifierInfo {
     }
 
     public List<ImageInfo> ensureImageListInfo(Access acc, int start, int end) throws IIIFException {
+        log.info("USER HAS FAIR USE RESOURCE ACCESS {} and IS ADMIN {}", acc.hasResourceAccess(RdfConstants.FAIR_USE),
+                acc.getUser().isAdmin());
+        return ensureImageListInfo(acc.hasResourceAccess(RdfConstants.FAIR_USE), start, end);
+    }
+
+    public List<ImageInfo> ensureImageListInfo(boolean fairUseAccess, int start, int end) throws IIIFException {
         // get the full list;
         List<ImageInfo> info = null;
         try {
@@ -92,16 +108,13 @@ public class IdentifierInfo {
         }
         // work is fair use but and user is not authorized to see it in full
         // return full list
-        log.info("USER HAS FAIR USE RESOURCE ACCESS {}", acc.hasResourceAccess(RdfConstants.FAIR_USE));
-        if (isFairUse() && !acc.hasResourceAccess(RdfConstants.FAIR_USE)) {
+        if (isFairUse() && !fairUseAccess) {
             log.debug("START {}, END {}", start, end);
             return getFairUseImageList(info, start, end);
         }
         // work is fair use but user is authorized to see it in full
         // return full list
-        log.info("USER HAS FAIR USE RESOURCE ACCESS {} and IS ADMIN {}", acc.hasResourceAccess(RdfConstants.FAIR_USE),
-                acc.getUser().isAdmin());
-        if (isFairUse() && acc.hasResourceAccess(RdfConstants.FAIR_USE)) {
+        if (isFairUse() && fairUseAccess) {
             return info;
         }
         return getImageListRange(info, start, end);
@@ -167,7 +180,7 @@ public class IdentifierInfo {
 
     public String getCanonical() throws ClientProtocolException, IOException, IIIFException, ResourceNotFoundException {
         String in = imageName == null ? computedImageName : imageName;
-        return AppConstants.IGFN + ":" + volumeId + ":" + in;
+        return AppConstants.IGFN + ":" + volumeId + "::" + in;
     }
 
     public IdentifierInfo(String identifier, ImageGroupInfo igi) throws IIIFException {
@@ -232,7 +245,7 @@ public class IdentifierInfo {
 
     public void computeImageName(List<ImageInfo> inf) {
         if (imageIndex != null && imageIndex < inf.size()) {
-            computedImageName = inf.get(imageIndex).filename;
+            computedImageName = ImageInfoList.of(inf).getFilename(imageIndex);
         }
     }
 
@@ -0,0 +1,78 @@
+package io.bdrc.iiif.resolver;
+
+import java.util.List;
+
+import io.bdrc.iiif.image.service.ImageProviderService;
+
+/**
+ * Index of the images of an image group: the lookups by file name and the
+ * dimensions go to the columns of the cached ImageInfoList, the fair use
+ * pages and the S3 key prefix are computed from the image group info. It
+ * holds nothing but these two objects, so it's built for each request.
+ */
+public class ImageGroupIndex {
+
+    final ImageGroupInfo igi;
+    final ImageInfoList list;
+
+    // the fair use pages are [fairUseStart, fairUseEnd) and [fairUseTail, size)
+    private final int fairUseStart;
+    private final int fairUseEnd;
+    private final int fairUseTail;
+    private final String keyPrefix;
+
+    ImageGroupIndex(final ImageGroupInfo igi, final ImageInfoList list) {
+        this.igi = igi;
+        this.list = list;
+        final int n = list.size();
+        // same pages as ImageGroupInfo.initAccessibleInFairUse
+        final int intro = igi.pagesIntroTbrc == null ? 0 : igi.pagesIntroTbrc;
+        fairUseStart = Math.min(intro, n);
+        fairUseEnd = Math.min(n, intro + AppConstants.FAIRUSE_PAGES_S);
+        fairUseTail = Math.max(0, n - AppConstants.FAIRUSE_PAGES_E);
+        // computed once per image group info, it needs an md5
+        if (igi.keyPrefix == null) {
+            igi.keyPrefix = ImageProviderService.getKeyPrefix(igi);
+        }
+        keyPrefix = igi.keyPrefix;
+    }
+
+    public static ImageGroupIndex get(final ImageGroupInfo igi, final List<ImageInfo> ili) {
+        return new ImageGroupIndex(igi, ImageInfoList.of(ili));
+    }
+
+    // index of the image in the list, -1 if there is none
+    public int indexOf(final String filename) {
+        return list.indexOfFilename(filename);
+    }
+
+    public int size() {
+        return list.size();
+    }
+
+    public String getFilename(final int i) {
+        return list.getFilename(i);
+    }
+
+    public int getWidth(final int i) {
+        return list.getWidth(i);
+    }
+
+    public int getHeight(final int i) {
+        return list.getHeight(i);
+    }
+
+    public Integer getSize(final int i) {
+        return list.getImageSize(i);
+    }
+
+    public boolean isAccessibleInFairUse(final String filename) {
+        final int i = indexOf(filename);
+        return i >= 0 && ((i >= fairUseStart && i < fairUseEnd) || i >= fairUseTail);
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+}
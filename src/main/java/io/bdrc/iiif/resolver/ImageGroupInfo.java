@@ -1,12 +1,14 @@
 package io.bdrc.iiif.resolver;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.jena.query.QuerySolution;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,6 +16,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.bdrc.iiif.core.MetadataStore;
 import io.bdrc.iiif.exceptions.IIIFException;
 import io.bdrc.iiif.image.service.ImageGroupInfoService;
 
@@ -42,32 +45,35 @@ public class ImageGroupInfo {
     @JsonProperty("accessibleInFairUseList")
     public Map<String, Boolean> accessibleInFairUseList = null;
 
+    // S3 directory of the images, computed once by ImageGroupIndex
+    transient String keyPrefix = null;
+
     private static final Logger logger = LoggerFactory.getLogger(ImageGroupInfoService.class);
 
-    // result of volumeInfo query
-    public ImageGroupInfo(final QuerySolution sol, final String volumeId) {
-        logger.debug("creating VolumeInfo for solution {}", sol.toString());
+    // row of the result of the volumeInfo query: variable -> value
+    public ImageGroupInfo(final Map<String, String> sol, final String volumeId) {
+        logger.debug("creating VolumeInfo for solution {}", sol);
         if (volumeId.startsWith("bdr:")) {
             this.imageGroup = volumeId.substring(4);
         } else {
             this.imageGroup = volumeId;
         }
-        this.access = AccessType.fromString(sol.getResource("access").getURI());
-        this.statusUri = sol.getResource("status").getURI();
-        this.license = LicenseType.fromString(sol.getResource("license").getURI());
-        this.instanceId = sol.getResource("instanceId").getURI();
-        this.imageInstanceId = sol.getResource("iinstanceId").getURI();
-        if (sol.contains("?ric")) {
-            this.restrictedInChina = sol.get("?ric").asLiteral().getBoolean();
+        this.access = AccessType.fromString(sol.get("access"));
+        this.statusUri = sol.get("status");
+        this.license = LicenseType.fromString(sol.get("license"));
+        this.instanceId = sol.get("instanceId");
+        this.imageInstanceId = sol.get("iinstanceId");
+        if (sol.containsKey("ric")) {
+            this.restrictedInChina = Boolean.parseBoolean(sol.get("ric"));
         }
-        if (sol.contains("?volumeNumber")) {
-            this.volumeNumber = sol.get("?volumeNumber").asLiteral().getInt();
+        if (sol.containsKey("volumeNumber")) {
+            this.volumeNumber = Integer.parseInt(sol.get("volumeNumber"));
         }
-        if (sol.contains("?pagesIntroTbrc")) {
-            this.pagesIntroTbrc = sol.get("?pagesIntroTbrc").asLiteral().getInt();
+        if (sol.containsKey("pagesIntroTbrc")) {
+            this.pagesIntroTbrc = Integer.parseInt(sol.get("pagesIntroTbrc"));
         }
-        if (sol.contains("iiifManifest")) {
-            final String manifestURIString = sol.getResource("iiifManifest").getURI();
+        if (sol.containsKey("iiifManifest")) {
+            final String manifestURIString = sol.get("iiifManifest");
             try {
                 this.iiifManifest = new URI(manifestURIString);
             } catch (URISyntaxException e) {
@@ -100,6 +106,38 @@ public class ImageGroupInfo {
     public ImageGroupInfo() {
     }
 
+    // encoding in the metadata store, the fair use list is not stored
+    public static void writeTo(final DataOutput out, final ImageGroupInfo igi) throws IOException {
+        MetadataStore.writeString(out, igi.access == null ? null : igi.access.getUri());
+        out.writeBoolean(igi.restrictedInChina != null && igi.restrictedInChina);
+        MetadataStore.writeString(out, igi.license == null ? null : igi.license.getUri());
+        MetadataStore.writeString(out, igi.statusUri);
+        MetadataStore.writeString(out, igi.instanceId);
+        MetadataStore.writeString(out, igi.imageInstanceId);
+        out.writeInt(igi.pagesIntroTbrc == null ? 0 : igi.pagesIntroTbrc);
+        out.writeInt(igi.volumeNumber == null ? 1 : igi.volumeNumber);
+        MetadataStore.writeString(out, igi.imageGroup);
+        MetadataStore.writeString(out, igi.iiifManifest == null ? null : igi.iiifManifest.toString());
+    }
+
+    public static ImageGroupInfo readFrom(final DataInput in) throws IOException {
+        final ImageGroupInfo igi = new ImageGroupInfo();
+        igi.access = AccessType.fromString(MetadataStore.readString(in));
+        igi.restrictedInChina = in.readBoolean();
+        igi.license = LicenseType.fromString(MetadataStore.readString(in));
+        igi.statusUri = MetadataStore.readString(in);
+        igi.instanceId = MetadataStore.readString(in);
+        igi.imageInstanceId = MetadataStore.readString(in);
+        igi.pagesIntroTbrc = in.readInt();
+        igi.volumeNumber = in.readInt();
+        igi.imageGroup = MetadataStore.readString(in);
+        final String manifest = MetadataStore.readString(in);
+        if (manifest != null) {
+            igi.iiifManifest = URI.create(manifest);
+        }
+        return igi;
+    }
+
     @Override
     public String toString() {
         try {
@@ -0,0 +1,350 @@
+package io.bdrc.iiif.resolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The image list of an image group (dimensions.json) in columnar form: the
+ * dimensions and sizes are in int arrays and the file names are the common
+ * prefix of all the names plus the rest of each name in a single UTF-8 buffer.
+ * The names are indexed in an open addressing hash table over these bytes, so
+ * that indexOfFilename and the accessors don't allocate. The list is read-only, get()
+ * returns a new ImageInfo.
+ */
+public class ImageInfoList extends AbstractList<ImageInfo> implements RandomAccess {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final String prefix;
+    private final byte[] suffixes;
+    // start of the suffix of each name in suffixes, plus the end of the last one
+    private final int[] offsets;
+    private final int[] widths;
+    private final int[] heights;
+    // -1 when the size is unknown
+    private final int[] sizes;
+    // image index + 1, 0 for an empty slot
+    private final int[] slots;
+
+    private ImageInfoList(final List<String> names, final int[] widths, final int[] heights, final int[] sizes) {
+        final int n = names.size();
+        String p = n == 0 ? "" : names.get(0);
+        for (String name : names) {
+            int k = 0;
+            final int max = Math.min(p.length(), name.length());
+            while (k < max && p.charAt(k) == name.charAt(k)) {
+                k++;
+            }
+            if (k > 0 && k < p.length() && Character.isHighSurrogate(p.charAt(k - 1))) {
+                k--;
+            }
+            p = p.substring(0, k);
+        }
+        this.prefix = p;
+        this.offsets = new int[n + 1];
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (int i = 0; i < n; i++) {
+            offsets[i] = buf.size();
+            final byte[] suffix = names.get(i).substring(prefix.length()).getBytes(StandardCharsets.UTF_8);
+            buf.write(suffix, 0, suffix.length);
+        }
+        offsets[n] = buf.size();
+        this.suffixes = buf.toByteArray();
+        this.widths = Arrays.copyOf(widths, n);
+        this.heights = Arrays.copyOf(heights, n);
+        this.sizes = Arrays.copyOf(sizes, n);
+        this.slots = buildSlots();
+    }
+
+    private ImageInfoList(final String prefix, final byte[] suffixes, final int[] offsets, final int[] widths,
+            final int[] heights, final int[] sizes) {
+        this.prefix = prefix;
+        this.suffixes = suffixes;
+        this.offsets = offsets;
+        this.widths = widths;
+        this.heights = heights;
+        this.sizes = sizes;
+        this.slots = buildSlots();
+    }
+
+    private int[] buildSlots() {
+        final int n = widths.length;
+        int capacity = 2;
+        while (capacity < 2 * n) {
+            capacity <<= 1;
+        }
+        final int[] res = new int[capacity];
+        final int mask = capacity - 1;
+        for (int i = 0; i < n; i++) {
+            int h = hashSuffix(i);
+            while (res[h & mask] != 0) {
+                // duplicate file names keep the first image
+                if (sameSuffix(res[h & mask] - 1, i)) {
+                    break;
+                }
+                h++;
+            }
+            if (res[h & mask] == 0) {
+                res[h & mask] = i + 1;
+            }
+        }
+        return res;
+    }
+
+    private static int mix(final int h, final int b) {
+        return (h ^ b) * 0x01000193;
+    }
+
+    private int hashSuffix(final int i) {
+        int h = 0x811C9DC5;
+        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+            h = mix(h, suffixes[k] & 0xFF);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private boolean sameSuffix(final int i, final int j) {
+        final int len = offsets[i + 1] - offsets[i];
+        if (len != offsets[j + 1] - offsets[j]) {
+            return false;
+        }
+        for (int k = 0; k < len; k++) {
+            if (suffixes[offsets[i] + k] != suffixes[offsets[j] + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the code point as String.getBytes encodes it, lone surrogates being '?'
+    private static int getCodePoint(final String s, final int pos) {
+        final int cp = s.codePointAt(pos);
+        return cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE ? '?' : cp;
+    }
+
+    private static int utf8Length(final int cp) {
+        return cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+    }
+
+    // byte k of the UTF-8 encoding of the code point
+    private static int utf8Byte(final int cp, final int len, final int k) {
+        if (len == 1) {
+            return cp;
+        }
+        if (k == 0) {
+            return (0xF00 >> len) & 0xFF | (cp >> (6 * (len - 1)));
+        }
+        return 0x80 | ((cp >> (6 * (len - 1 - k))) & 0x3F);
+    }
+
+    // hash of the UTF-8 bytes of s after the prefix, the same as hashSuffix
+    private int hashName(final String s) {
+        int h = 0x811C9DC5;
+        for (int pos = prefix.length(); pos < s.length(); pos += Character.charCount(s.codePointAt(pos))) {
+            final int cp = getCodePoint(s, pos);
+            final int len = utf8Length(cp);
+            for (int k = 0; k < len; k++) {
+                h = mix(h, utf8Byte(cp, len, k));
+            }
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // true if the suffix of image i is s after the prefix, s starting with it
+    private boolean matches(final int i, final String s) {
+        int b = offsets[i];
+        final int end = offsets[i + 1];
+        for (int pos = prefix.length(); pos < s.length(); pos += Character.charCount(s.codePointAt(pos))) {
+            final int cp = getCodePoint(s, pos);
+            final int len = utf8Length(cp);
+            for (int k = 0; k < len; k++) {
+                if (b == end || (suffixes[b] & 0xFF) != utf8Byte(cp, len, k)) {
+                    return false;
+                }
+                b++;
+            }
+        }
+        return b == end;
+    }
+
+    /**
+     * Reads a dimensions.json stream, without creating an object per image.
+     * The entries for json files are skipped.
+     */
+    public static ImageInfoList read(final InputStream in) throws IOException {
+        final List<String> names = new ArrayList<>();
+        int[] widths = new int[256];
+        int[] heights = new int[256];
+        int[] sizes = new int[256];
+        int n = 0;
+        try (JsonParser p = jsonFactory.createParser(in)) {
+            if (p.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("the image list is not a json array");
+            }
+            while (p.nextToken() == JsonToken.START_OBJECT) {
+                String filename = null;
+                int width = 0;
+                int height = 0;
+                int size = -1;
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = p.getCurrentName();
+                    final JsonToken t = p.nextToken();
+                    switch (field) {
+                    case "filename":
+                        filename = p.getValueAsString();
+                        break;
+                    case "width":
+                        width = p.getValueAsInt();
+                        break;
+                    case "height":
+                        height = p.getValueAsInt();
+                        break;
+                    case "size":
+                        size = t == JsonToken.VALUE_NULL ? -1 : p.getValueAsInt();
+                        break;
+                    default:
+                        p.skipChildren();
+                    }
+                }
+                if (filename == null || filename.endsWith("json")) {
+                    continue;
+                }
+                if (n == widths.length) {
+                    widths = Arrays.copyOf(widths, n * 2);
+                    heights = Arrays.copyOf(heights, n * 2);
+                    sizes = Arrays.copyOf(sizes, n * 2);
+                }
+                names.add(filename);
+                widths[n] = width;
+                heights[n] = height;
+                sizes[n] = size;
+                n++;
+            }
+        }
+        return new ImageInfoList(names, widths, heights, sizes);
+    }
+
+    // encoding in the metadata store, the columns as they are
+    public static void writeTo(final DataOutput out, final List<ImageInfo> list) throws IOException {
+        final ImageInfoList il = of(list);
+        final int n = il.widths.length;
+        out.writeUTF(il.prefix);
+        out.writeInt(n);
+        out.writeInt(il.suffixes.length);
+        out.write(il.suffixes);
+        for (int i = 0; i <= n; i++) {
+            out.writeInt(il.offsets[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            out.writeInt(il.widths[i]);
+            out.writeInt(il.heights[i]);
+            out.writeInt(il.sizes[i]);
+        }
+    }
+
+    public static ImageInfoList readFrom(final DataInput in) throws IOException {
+        final String prefix = in.readUTF();
+        final int n = in.readInt();
+        final byte[] suffixes = new byte[in.readInt()];
+        in.readFully(suffixes);
+        final int[] offsets = new int[n + 1];
+        for (int i = 0; i <= n; i++) {
+            offsets[i] = in.readInt();
+        }
+        final int[] widths = new int[n];
+        final int[] heights = new int[n];
+        final int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            widths[i] = in.readInt();
+            heights[i] = in.readInt();
+            sizes[i] = in.readInt();
+        }
+        return new ImageInfoList(prefix, suffixes, offsets, widths, heights, sizes);
+    }
+
+    static ImageInfoList fromImageInfos(final List<ImageInfo> list) {
+        final int n = list.size();
+        final List<String> names = new ArrayList<>(n);
+        final int[] widths = new int[n];
+        final int[] heights = new int[n];
+        final int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            final ImageInfo imgInf = list.get(i);
+            names.add(imgInf.filename);
+            widths[i] = imgInf.width;
+            heights[i] = imgInf.height;
+            sizes[i] = imgInf.size == null ? -1 : imgInf.size;
+        }
+        return new ImageInfoList(names, widths, heights, sizes);
+    }
+
+    // the list itself when it's columnar, a columnar copy otherwise
+    public static ImageInfoList of(final List<ImageInfo> list) {
+        return list instanceof ImageInfoList ? (ImageInfoList) list : fromImageInfos(list);
+    }
+
+    /**
+     * Index of the image with this file name in the list, -1 if there is none.
+     * Nothing is allocated.
+     */
+    public int indexOfFilename(final String filename) {
+        if (filename == null || !filename.startsWith(prefix)) {
+            return -1;
+        }
+        final int mask = slots.length - 1;
+        int h = hashName(filename);
+        while (true) {
+            final int slot = slots[h & mask];
+            if (slot == 0) {
+                return -1;
+            }
+            if (matches(slot - 1, filename)) {
+                return slot - 1;
+            }
+            h++;
+        }
+    }
+
+    @Override
+    public ImageInfo get(final int i) {
+        return new ImageInfo(widths[i], heights[i], getFilename(i), getImageSize(i));
+    }
+
+    @Override
+    public int size() {
+        return widths.length;
+    }
+
+    public String getFilename(final int i) {
+        if (i < 0 || i >= widths.length) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + widths.length);
+        }
+        return prefix + new String(suffixes, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+    }
+
+    public int getWidth(final int i) {
+        return widths[i];
+    }
+
+    public int getHeight(final int i) {
+        return heights[i];
+    }
+
+    public Integer getImageSize(final int i) {
+        return sizes[i] < 0 ? null : sizes[i];
+    }
+
+}
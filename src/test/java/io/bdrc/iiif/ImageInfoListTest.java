@@ -0,0 +1,72 @@
+package io.bdrc.iiif;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import io.bdrc.iiif.resolver.ImageInfo;
+import io.bdrc.iiif.resolver.ImageInfoList;
+
+public class ImageInfoListTest {
+
+    @Test
+    public void readDimensions() throws IOException {
+        String json = "[{\"width\":2000,\"height\":500,\"filename\":\"I1KG1234_0001.tif\",\"size\":1234},"
+                + "{\"filename\":\"I1KG1234_0002.jpg\",\"width\":1800,\"height\":400,\"extra\":{\"a\":[1,2]}},"
+                + "{\"filename\":\"dimensions.json\",\"width\":0,\"height\":0},"
+                + "{\"width\":10,\"height\":20,\"filename\":\"\u0f40.jpg\",\"size\":null}]";
+        ImageInfoList ili = ImageInfoList.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, ili.size());
+        ImageInfo first = ili.get(0);
+        assertEquals("I1KG1234_0001.tif", first.filename);
+        assertEquals(2000, first.width);
+        assertEquals(500, first.height);
+        assertEquals(Integer.valueOf(1234), first.size);
+        assertEquals("I1KG1234_0002.jpg", ili.getFilename(1));
+        assertNull(ili.get(1).size);
+        assertEquals("\u0f40.jpg", ili.getFilename(2));
+        assertEquals(20, ili.getHeight(2));
+    }
+
+    @Test
+    public void storeEncoding() throws IOException {
+        String json = "[{\"width\":2000,\"height\":500,\"filename\":\"I1KG1234_0001.tif\",\"size\":1234},"
+                + "{\"filename\":\"I1KG1234_0002.jpg\",\"width\":1800,\"height\":400}]";
+        ImageInfoList ili = ImageInfoList.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageInfoList.writeTo(new DataOutputStream(bytes), ili);
+        ImageInfoList read = ImageInfoList.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(2, read.size());
+        assertEquals("I1KG1234_0001.tif", read.getFilename(0));
+        assertEquals("I1KG1234_0002.jpg", read.getFilename(1));
+        assertEquals(Integer.valueOf(1234), read.getImageSize(0));
+        assertNull(read.getImageSize(1));
+        assertEquals(1800, read.getWidth(1));
+    }
+
+    @Test
+    public void filenameIndex() throws IOException {
+        String json = "[{\"width\":1,\"height\":1,\"filename\":\"I1KG1234_0001.tif\"},"
+                + "{\"width\":2,\"height\":2,\"filename\":\"I1KG1234_\u0f40.jpg\"},"
+                + "{\"width\":3,\"height\":3,\"filename\":\"I1KG1234_\ud83d\ude00.jpg\"},"
+                + "{\"width\":4,\"height\":4,\"filename\":\"I1KG1234_0001.tif\"}]";
+        ImageInfoList ili = ImageInfoList.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, ili.indexOfFilename("I1KG1234_0001.tif"));
+        assertEquals(1, ili.indexOfFilename("I1KG1234_\u0f40.jpg"));
+        assertEquals(2, ili.indexOfFilename("I1KG1234_\ud83d\ude00.jpg"));
+        assertEquals(-1, ili.indexOfFilename("I1KG1234_0002.tif"));
+        assertEquals(-1, ili.indexOfFilename("I1KG1234_"));
+        assertEquals(-1, ili.indexOfFilename("other.jpg"));
+        assertEquals(-1, ili.indexOfFilename(null));
+        assertEquals(2, ili.getWidth(ili.indexOfFilename("I1KG1234_\u0f40.jpg")));
+    }
+
+}
@@ -0,0 +1,51 @@
+package io.bdrc.iiif;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.bdrc.iiif.image.service.LdsClient;
+import io.bdrc.iiif.resolver.AccessType;
+import io.bdrc.iiif.resolver.ImageGroupInfo;
+
+public class LdsClientTest {
+
+    private static final String RESULT = "{ \"head\": { \"vars\": [ \"ig\", \"access\", \"volumeNumber\", \"ric\" ] },\n"
+            + "  \"results\": { \"bindings\": [\n"
+            + "    { \"ig\": { \"type\": \"uri\", \"value\": \"http://purl.bdrc.io/resource/I1\" },\n"
+            + "      \"access\": { \"type\": \"uri\", \"value\": \"http://purl.bdrc.io/admindata/AccessOpen\" },\n"
+            + "      \"volumeNumber\": { \"type\": \"literal\", \"datatype\": \"http://www.w3.org/2001/XMLSchema#integer\", \"value\": \"3\" },\n"
+            + "      \"ric\": { \"type\": \"literal\", \"datatype\": \"http://www.w3.org/2001/XMLSchema#boolean\", \"value\": \"true\" } },\n"
+            + "    { \"ig\": { \"type\": \"uri\", \"value\": \"http://purl.bdrc.io/resource/I2\" } }\n"
+            + "  ] } }";
+
+    @Test
+    public void readBindings() throws IOException {
+        List<Map<String, String>> rows = LdsClient
+                .readBindings(new ByteArrayInputStream(RESULT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, rows.size());
+        assertEquals("http://purl.bdrc.io/resource/I1", rows.get(0).get("ig"));
+        assertEquals("3", rows.get(0).get("volumeNumber"));
+        assertEquals(1, rows.get(1).size());
+        ImageGroupInfo igi = new ImageGroupInfo(rows.get(0), "bdr:I1");
+        assertEquals("I1", igi.imageGroup);
+        assertEquals(AccessType.OPEN, igi.access);
+        assertEquals(Integer.valueOf(3), igi.volumeNumber);
+        assertEquals(Boolean.TRUE, igi.restrictedInChina);
+    }
+
+    @Test
+    public void readEmptyResult() throws IOException {
+        List<Map<String, String>> rows = LdsClient.readBindings(new ByteArrayInputStream(
+                "{ \"head\": { \"vars\": [] }, \"results\": { \"bindings\": [] } }".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(rows.isEmpty());
+    }
+
+}
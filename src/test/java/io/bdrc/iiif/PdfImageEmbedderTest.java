@@ -0,0 +1,47 @@
+package io.bdrc.iiif;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import io.bdrc.iiif.archives.PdfImageEmbedder;
+
+public class PdfImageEmbedderTest {
+
+    // little endian tiff header with one ifd of two entries: compression and
+    // strip offsets
+    private static byte[] tiff(int compression, int nbStrips) {
+        return new byte[] { 'I', 'I', 42, 0, 8, 0, 0, 0, 2, 0,
+                (byte) 0x03, 0x01, 3, 0, 1, 0, 0, 0, (byte) compression, 0, 0, 0,
+                (byte) 0x11, 0x01, 4, 0, (byte) nbStrips, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 0 };
+    }
+
+    @Test
+    public void detectBaselineJpeg() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(20, 10, BufferedImage.TYPE_3BYTE_BGR), "jpg", baos);
+        assertTrue(PdfImageEmbedder.isBaselineJpeg(baos.toByteArray()));
+        baos = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(20, 10, BufferedImage.TYPE_3BYTE_BGR), "png", baos);
+        assertFalse(PdfImageEmbedder.isBaselineJpeg(baos.toByteArray()));
+        // progressive frame header
+        assertFalse(PdfImageEmbedder.isBaselineJpeg(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xC2, 0, 8 }));
+    }
+
+    @Test
+    public void detectSingleStripG4Tiff() {
+        assertTrue(PdfImageEmbedder.isSingleStripG4Tiff(tiff(4, 1)));
+        assertFalse(PdfImageEmbedder.isSingleStripG4Tiff(tiff(4, 3)));
+        assertFalse(PdfImageEmbedder.isSingleStripG4Tiff(tiff(5, 1)));
+        assertFalse(PdfImageEmbedder.isSingleStripG4Tiff(new byte[] { 'I', 'I', 43, 0, 8, 0, 0, 0 }));
+    }
+
+}
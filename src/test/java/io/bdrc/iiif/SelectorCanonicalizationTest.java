@@ -0,0 +1,56 @@
+package io.bdrc.iiif;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Dimension;
+
+import org.junit.Test;
+
+import io.bdrc.iiif.controllers.IIIFImageApiController;
+import io.bdrc.iiif.exceptions.IIIFException;
+import io.bdrc.iiif.model.ImageApiProfile;
+import io.bdrc.iiif.model.ImageApiProfile.Quality;
+import io.bdrc.iiif.model.ImageApiSelector;
+
+public class SelectorCanonicalizationTest {
+
+    static final String ID = "bdr:I0886::08860003.jpg";
+    static final Dimension NATIVE = new Dimension(1000, 500);
+
+    private static ImageApiSelector selector(String region, String size, String rotation, String format) throws IIIFException {
+        return ImageApiSelector.fromString(ID + "/" + region + "/" + size + "/" + rotation + "/default." + format);
+    }
+
+    @Test
+    public void identityRequests() throws IIIFException {
+        assertFalse(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("full", "max", "0", "jpg"), NATIVE));
+        assertFalse(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("0,0,1000,500", "1000,", "0", "jpg"), NATIVE));
+        assertFalse(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("pct:0,0,100,100", "pct:100", "0", "jpg"), NATIVE));
+        assertFalse(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("full", ",500", "0", "jpg"), NATIVE));
+    }
+
+    @Test
+    public void nonIdentityRequests() throws IIIFException {
+        assertTrue(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("full", "500,", "0", "jpg"), NATIVE));
+        assertTrue(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("0,0,500,500", "full", "0", "jpg"), NATIVE));
+        assertTrue(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("full", "full", "!0", "jpg"), NATIVE));
+        assertTrue(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("full", "full", "0", "png"), NATIVE));
+        // without dimensions only the literal full requests are passed through
+        assertTrue(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("0,0,1000,500", "full", "0", "jpg"), null));
+        assertFalse(IIIFImageApiController.requestDiffersFromOriginal(ID, selector("full", "max", "0", "jpg"), null));
+    }
+
+    @Test
+    public void canonicalForms() throws IIIFException {
+        final String canonicalId = "igfn:bdr:I0886::08860003.jpg";
+        assertEquals(canonicalId + "/full/full/0/default.jpg",
+                selector("0,0,1000,500", "max", "0", "jpg").getCanonicalForm(canonicalId, NATIVE, ImageApiProfile.LEVEL_TWO, Quality.DEFAULT));
+        assertEquals(canonicalId + "/full/500,/0/default.jpg",
+                selector("pct:0,0,100,100", "500,", "0", "jpg").getCanonicalForm(canonicalId, NATIVE, ImageApiProfile.LEVEL_TWO, Quality.DEFAULT));
+        assertEquals(canonicalId + "/0,0,500,500/250,/0/default.jpg",
+                selector("pct:0,0,50,100", "pct:50", "0", "jpg").getCanonicalForm(canonicalId, NATIVE, ImageApiProfile.LEVEL_TWO, Quality.DEFAULT));
+    }
+
+}